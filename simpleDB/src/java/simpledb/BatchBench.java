@@ -0,0 +1,138 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * BatchBench compares tuple-at-a-time and batch execution of the operators
+ * that implement {@link BatchOpIterator}. It builds a table t(a int, b int,
+ * s string) of random keys and a smaller table u(a int, b int) to join it
+ * with. Then it runs each query both ways: once through hasNext and next,
+ * and once through nextBatch. For each query it reports the best time of
+ * each mode over a number of runs. Before timing, it checks that both modes
+ * return the same tuples in the same order.
+ * <p>
+ * Usage: java simpledb.BatchBench [rows of t] [runs per query]
+ */
+public class BatchBench {
+
+    private static TransactionId tid;
+    private static int tId, uId;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Database.reset();
+        tId = table(rows, new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"a", "b", "s"},
+                (r, i) -> (r.nextInt(2000) - 1000) + "," + i + ",s" + i % 37);
+        uId = table(3000, new Type[]{Type.INT_TYPE, Type.INT_TYPE}, new String[]{"a", "b"},
+                (r, i) -> (i % 1500 - 700) + "," + i);
+
+        Map<String, Supplier<BatchOpIterator>> queries = new LinkedHashMap<>();
+        queries.put("scan", BatchBench::t);
+        queries.put("filter+project", () -> new Project(Arrays.asList(2, 1), new Type[]{Type.STRING_TYPE, Type.INT_TYPE},
+                new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(-500)), t())));
+        queries.put("filter 2x", () -> new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(rows / 3)),
+                new Filter(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(5)), t())));
+        queries.put("join", () -> new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), u(), t()));
+        queries.put("agg sum by s", () -> new Aggregate(t(), 0, 2, Aggregator.Op.SUM));
+        queries.put("agg avg", () -> new Aggregate(t(), 1, -1, Aggregator.Op.AVG));
+        queries.put("order a desc", () -> new OrderBy(0, false, t()));
+        queries.put("order s", () -> new OrderBy(2, true, t()));
+
+        Transaction txn = new Transaction();
+        txn.start();
+        tid = txn.getId();
+        System.out.println("query             rows     tuple ms   batch ms  speedup");
+        for (Map.Entry<String, Supplier<BatchOpIterator>> q : queries.entrySet()) {
+            Supplier<BatchOpIterator> query = q.getValue();
+            List<String> tuples = tuples(query.get()), batches = tuples(BatchAdapter.toTuples(query.get()));
+            if (!tuples.equals(batches))
+                throw new IllegalStateException(q.getKey() + ": the modes return different tuples");
+            long tupleNs = Long.MAX_VALUE, batchNs = Long.MAX_VALUE;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                countTuples(query.get());
+                tupleNs = Math.min(tupleNs, System.nanoTime() - start);
+                start = System.nanoTime();
+                countBatches(query.get());
+                batchNs = Math.min(batchNs, System.nanoTime() - start);
+            }
+            System.out.printf("%-16s %6d  %9.1f  %9.1f  %6.1fx%n", q.getKey(), tuples.size(),
+                    tupleNs / 1e6, batchNs / 1e6, (double) tupleNs / batchNs);
+        }
+        txn.commit();
+        Database.getBufferPool().flushAllPages();
+    }
+
+    private interface Line {
+        String make(Random r, int i);
+    }
+
+    /** Write a table of n random lines to a temporary file and add it to the catalog. */
+    private static int table(int n, Type[] types, String[] names, Line line) throws Exception {
+        File txt = File.createTempFile("batchbench", ".txt"), dat = File.createTempFile("batchbench", ".dat");
+        txt.deleteOnExit();
+        dat.deleteOnExit();
+        new File(dat.getPath() + ".fsm").deleteOnExit();
+        Random r = new Random(n);
+        try (PrintWriter w = new PrintWriter(new FileWriter(txt))) {
+            for (int i = 0; i < n; i++) w.println(line.make(r, i));
+        }
+        HeapFileEncoder.convert(txt, dat, BufferPool.getPageSize(), types.length, types, ',');
+        HeapFile f = new HeapFile(dat, new TupleDesc(types, names));
+        Database.getCatalog().addTable(f, names.length == 3 ? "t" : "u");
+        return f.getId();
+    }
+
+    private static SeqScan t() {
+        return new SeqScan(tid, tId, "t");
+    }
+
+    private static SeqScan u() {
+        return new SeqScan(tid, uId, "u");
+    }
+
+    private static List<String> tuples(OpIterator op) throws Exception {
+        List<String> l = new ArrayList<>();
+        op.open();
+        while (op.hasNext()) {
+            Tuple t = op.next();
+            StringBuilder sb = new StringBuilder();
+            // Tuple.toString does not take the null group field of an ungrouped aggregate
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++) sb.append(t.getField(i)).append('\t');
+            l.add(sb.toString());
+        }
+        op.close();
+        return l;
+    }
+
+    private static long countTuples(OpIterator op) throws Exception {
+        long n = 0;
+        op.open();
+        while (op.hasNext()) {
+            op.next();
+            n++;
+        }
+        op.close();
+        return n;
+    }
+
+    private static long countBatches(BatchOpIterator op) throws Exception {
+        long n = 0;
+        op.open();
+        for (Batch b = op.nextBatch(); b != null; b = op.nextBatch()) n += b.size();
+        op.close();
+        return n;
+    }
+}
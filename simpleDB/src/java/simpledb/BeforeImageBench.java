@@ -0,0 +1,91 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.HeapPage;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BeforeImageBench measures the memory a read-mostly scan workload
+ * allocates with HeapPage's copy on write before images on and off. Each
+ * pass scans a table through a pool too small to hold it, so every page is
+ * read from disk again, and then commits a single insert. It reports the
+ * bytes the scanning thread allocates per scan, from
+ * ThreadMXBean.getThreadAllocatedBytes. Read-ahead is off so that all pages
+ * are read, and allocated, on that thread.
+ * <p>
+ * Usage: java simpledb.BeforeImageBench [rows] [passes] [pool pages]
+ */
+public class BeforeImageBench {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int poolPages = args.length > 2 ? Integer.parseInt(args[2]) : BufferPool.DEFAULT_PAGES;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        Database.reset();
+        File dat = File.createTempFile("beforeimagebench", ".dat");
+        dat.deleteOnExit();
+        new File(dat.getPath() + ".fsm").deleteOnExit();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) tuples.add(Arrays.asList(i, i % 100));
+        HeapFileEncoder.convert(tuples, dat, BufferPool.getPageSize(), 2);
+        HeapFile table = Utility.openHeapFile(2, dat);
+
+        System.out.println("copy on write  pages/scan  bytes/scan  bytes/page read");
+        for (boolean cow : new boolean[]{false, true}) {
+            HeapPage.setCopyOnWrite(cow);
+            Database.getBufferPool().flushAllPages();
+            BufferPool pool = Database.resetBufferPool(poolPages);
+            pool.getReadAhead().setEnabled(false);
+            // a pass to warm up the JIT, not reported
+            pass(table, 0, mx);
+            long misses = 0, bytes = 0;
+            for (int i = 1; i <= passes; i++) {
+                long[] scan = pass(table, i, mx);
+                bytes += scan[0];
+                misses += scan[1];
+            }
+            System.out.printf("%13s  %10d  %10d  %15d%n", cow ? "on" : "off", misses / passes,
+                    bytes / passes, misses == 0 ? 0 : bytes / misses);
+        }
+        HeapPage.setCopyOnWrite(true);
+        Database.getBufferPool().flushAllPages();
+    }
+
+    /**
+     * Scan the whole table, then insert a tuple, each in a transaction of
+     * its own.
+     *
+     * @return the bytes the scan allocated, and the pages it read
+     */
+    private static long[] pass(HeapFile table, int i, com.sun.management.ThreadMXBean mx) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        long misses = pool.getMisses();
+        long thread = Thread.currentThread().getId(), before = mx.getThreadAllocatedBytes(thread);
+        Transaction scan = new Transaction();
+        scan.start();
+        SeqScan s = new SeqScan(scan.getId(), table.getId());
+        s.open();
+        while (s.hasNext()) s.next();
+        s.close();
+        scan.commit();
+        long[] res = {mx.getThreadAllocatedBytes(thread) - before, pool.getMisses() - misses};
+        Transaction insert = new Transaction();
+        insert.start();
+        Database.getBufferPool().insertTuple(insert.getId(), table.getId(), Utility.getHeapTuple(-i, 2));
+        insert.commit();
+        return res;
+    }
+}
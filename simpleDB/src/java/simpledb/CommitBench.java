@@ -0,0 +1,79 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/**
+ * CommitBench measures commit latency as the buffer pool grows. Each round
+ * fills a pool of the given size with the pages of a table, all of them
+ * locked by one open transaction, then times the commits of small
+ * transactions that each insert a tuple into another table. Since locks and
+ * dirty pages are tracked per transaction, the commit time should stay the
+ * same however many pages are cached and locked.
+ * <p>
+ * Usage: java simpledb.CommitBench [commits per round] [pool pages ...]
+ */
+public class CommitBench {
+
+    /** frames left free for the small transactions */
+    private static final int SPARE_PAGES = 16;
+
+    public static void main(String[] args) throws Exception {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int[] sizes = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[]{256, 2048, 16384};
+        // a round to warm up the JIT, not reported
+        run(sizes[0], commits, false);
+        System.out.println("pool pages  locked pages  median commit  p90 commit");
+        for (int size : sizes) run(size, commits, true);
+    }
+
+    private static void run(int poolPages, int commits, boolean report) throws Exception {
+        Database.reset();
+        Database.resetBufferPool(poolPages);
+        File big = File.createTempFile("commitbench", ".dat"), small = File.createTempFile("commitbench", ".dat");
+        big.deleteOnExit();
+        small.deleteOnExit();
+        int locked = Math.max(0, poolPages - SPARE_PAGES);
+        byte[] empty = HeapPage.createEmptyPageData();
+        try (FileOutputStream out = new FileOutputStream(big)) {
+            for (int i = 0; i < locked; i++) out.write(empty);
+        }
+        HeapFile bigFile = Utility.openHeapFile(2, big);
+        HeapFile smallFile = Utility.createEmptyHeapFile(small.getPath(), 2);
+
+        // cache and lock every page of the big table
+        Transaction reader = new Transaction();
+        reader.start();
+        for (int i = 0; i < locked; i++)
+            Database.getBufferPool().getPage(reader.getId(), new HeapPageId(bigFile.getId(), i), Permissions.READ_ONLY);
+
+        long[] ns = new long[commits];
+        for (int i = 0; i < commits; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), smallFile.getId(), Utility.getHeapTuple(i, 2));
+            long start = System.nanoTime();
+            t.commit();
+            ns[i] = System.nanoTime() - start;
+        }
+        reader.commit();
+        // leave nothing for the page writer once the next round resets the pool
+        Database.getBufferPool().flushAllPages();
+
+        if (!report) return;
+        Arrays.sort(ns);
+        System.out.printf("%10d  %12d  %10.1f us  %7.1f us%n", poolPages, locked,
+                ns[commits / 2] / 1e3, ns[commits * 9 / 10] / 1e3);
+    }
+}
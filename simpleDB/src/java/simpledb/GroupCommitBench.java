@@ -0,0 +1,86 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * GroupCommitBench measures commit throughput as the number of clients
+ * committing at once grows, with the log's group commit on and off. Every
+ * client runs transactions that each insert one tuple into a table of its
+ * own, so that clients never wait for each other's page locks and the
+ * commits are bound by forcing the log. With group commit on, commits that
+ * arrive together share an fsync; with it off, each one issues its own.
+ * <p>
+ * Usage: java simpledb.GroupCommitBench [commits per client] [clients ...]
+ */
+public class GroupCommitBench {
+
+    public static void main(String[] args) throws Exception {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int[] clients = new int[args.length > 1 ? args.length - 1 : 5];
+        for (int i = 0; i < clients.length; i++)
+            clients[i] = args.length > 1 ? Integer.parseInt(args[i + 1]) : 1 << i;
+        // a round to warm up the JIT, not reported
+        run(clients[0], commits, true);
+        System.out.println("clients  group commit/s  fsyncs/commit  no group commit/s  speedup");
+        for (int n : clients) {
+            double[] on = run(n, commits, true), off = run(n, commits, false);
+            System.out.printf("%7d  %14.0f  %13.2f  %17.0f  %6.1fx%n", n, on[0], on[1], off[0], on[0] / off[0]);
+        }
+    }
+
+    /** @return commits per second, and fsyncs per commit */
+    private static double[] run(int clients, int commits, boolean groupCommit) throws Exception {
+        Database.reset();
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(groupCommit);
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            File f = File.createTempFile("groupcommitbench", ".dat");
+            f.deleteOnExit();
+            new File(f.getPath() + ".fsm").deleteOnExit();
+            tables.add(Utility.createEmptyHeapFile(f.getPath(), 2));
+        }
+        CyclicBarrier start = new CyclicBarrier(clients + 1);
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (HeapFile table : tables) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < commits; i++) {
+                        Transaction txn = new Transaction();
+                        txn.start();
+                        Database.getBufferPool().insertTuple(txn.getId(), table.getId(), Utility.getHeapTuple(i, 2));
+                        txn.commit();
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        log.resetStats();
+        start.await();
+        long begin = System.nanoTime();
+        for (Thread t : threads) t.join();
+        long ns = System.nanoTime() - begin;
+        if (!failures.isEmpty()) throw failures.get(0);
+        long fsyncs = log.getForceCount();
+        // leave nothing for the page writer once the next round resets the pool
+        Database.getBufferPool().flushAllPages();
+        double total = (double) clients * commits;
+        return new double[]{total / (ns / 1e9), fsyncs / total};
+    }
+}
@@ -1,8 +1,10 @@
 package simpledb;
+import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -50,13 +52,43 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    HeapFileEncoder.ConvertStats stats = HeapFileEncoder.convertParallel(sourceTxtFile, targetDatFile,
+                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator,
+                            Runtime.getRuntime().availableProcessors());
+                    System.out.println("Converted " + stats);
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
                 break;
+            case "load":
+                // load a text file into a table of a catalog, in one transaction
+                if (args.length < 4 || args.length > 5) {
+                    System.err.println("Usage: load <catalog file> <table name> <text file> [field separator]");
+                    return;
+                }
+                Database.getCatalog().loadSchema(args[1]);
+                Transaction txn = new Transaction();
+                txn.start();
+                // whatever fails, the load's pages must be rolled back
+                boolean committed = false;
+                try {
+                    int loaded = BulkLoader.load(txn.getId(), Database.getCatalog().getTableId(args[2]),
+                            new File(args[3]), args.length == 5 ? args[4].charAt(0) : ',');
+                    txn.commit();
+                    committed = true;
+                    System.out.println("Loaded " + loaded + " tuples into " + args[2]);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    if (!committed) {
+                        try {
+                            txn.abort();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                break;
             case "print":
                 File tableFile = new File(args[1]);
                 int columns = Integer.parseInt(args[2]);
@@ -130,10 +130,19 @@ public class Catalog {
         return res;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
+        IOException err = null;
+        for (DbFile file : mp_name.values()) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                if (err == null) err = e;
+            }
+        }
         mp_name.clear();
         mp_id.clear();
+        if (err != null) throw new RuntimeException(err);
     }
     
     /**
@@ -70,9 +70,14 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
-    // reset the database, used for unit tests only.
+    // reset the database, used for unit tests only. Like a crash, this
+    // drops the old buffer pool's pages, including committed ones its page
+    // writer has not written yet: recovery redoes those from the log. The
+    // old catalog's files are closed, so its tables must be opened again.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._bufferpool.shutdown();
+        old._catalog.clear();
     }
 
 }
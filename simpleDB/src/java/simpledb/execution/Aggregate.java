@@ -13,7 +13,7 @@ import java.util.NoSuchElementException;
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private int afield, gfield;
@@ -23,6 +23,9 @@ public class Aggregate extends Operator {
     private Aggregator aggr;
     private OpIterator it = null;
     private Type gbfieldtype, afieldtype;
+    /** whether the child has been read into aggr since open */
+    private transient boolean merged = false;
+    private transient Batch out;
     /**
      * Constructor.
      * <p>
@@ -95,10 +98,26 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         child.open();
-        while (child.hasNext()) aggr.mergeTupleIntoGroup(child.next());
+        merged = false;
+        super.open();
+    }
+
+    /**
+     * Read the child into the aggregator, the first time the result is
+     * asked for, a batch at a time if batches are asked for.
+     */
+    private void merge(boolean batches) throws DbException, TransactionAbortedException {
+        if (merged) return;
+        merged = true;
+        if (batches) {
+            BatchOpIterator bc = BatchAdapter.toBatches(child);
+            Batch b;
+            while ((b = bc.nextBatch()) != null) aggr.mergeBatchIntoGroup(b);
+        } else {
+            while (child.hasNext()) aggr.mergeTupleIntoGroup(child.next());
+        }
         it = aggr.iterator();
         it.open();
-        super.open();
     }
 
     /**
@@ -109,11 +128,25 @@ public class Aggregate extends Operator {
      * aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        merge(false);
         return it.hasNext() ? it.next() : null;
     }
 
+    /**
+     * Returns the next batch of result rows; the child is read a batch at a
+     * time.
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        merge(true);
+        if (out == null) out = new Batch(it.getTupleDesc(), BATCH_SIZE);
+        out.clear();
+        while (!out.isFull() && it.hasNext()) out.addTuple(it.next());
+        return out.getNumRows() > 0 ? out : null;
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
-        child.rewind(); it.rewind();
+        child.rewind();
+        if (it != null) it.rewind();
     }
 
     public TupleDesc getTupleDesc() {
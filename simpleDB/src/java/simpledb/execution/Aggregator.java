@@ -1,5 +1,6 @@
 package simpledb.execution;
 
+import simpledb.storage.Batch;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleIterator;
 
@@ -79,6 +80,14 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate, as if each was
+     * passed to mergeTupleIntoGroup in turn.
+     *
+     * @param b the Batch containing an aggregate field and a group-by field
+     */
+    void mergeBatchIntoGroup(Batch b);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
@@ -0,0 +1,126 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Batch;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter composes tuple-at-a-time and batch-at-a-time operators.
+ */
+public class BatchAdapter {
+
+    /**
+     * @return child if it runs a batch at a time, or otherwise an operator
+     *         that reads child's tuples into batches; opening, rewinding
+     *         and closing it does the same to child
+     */
+    public static BatchOpIterator toBatches(OpIterator child) {
+        return child instanceof BatchOpIterator ? (BatchOpIterator) child : new TupleBatcher(child);
+    }
+
+    /**
+     * @return an operator returning the rows of child's batches as tuples,
+     *         so that a tuple operator above it runs child a batch at a time
+     */
+    public static OpIterator toTuples(BatchOpIterator child) {
+        return new BatchUnbatcher(child);
+    }
+
+    /** Reads a tuple operator into batches. */
+    private static class TupleBatcher implements BatchOpIterator {
+        private static final long serialVersionUID = 1L;
+        private final OpIterator child;
+        private transient Batch batch;
+
+        TupleBatcher(OpIterator child) {
+            this.child = child;
+        }
+
+        public Batch nextBatch() throws DbException, TransactionAbortedException {
+            if (batch == null) batch = new Batch(child.getTupleDesc(), BATCH_SIZE);
+            batch.clear();
+            while (!batch.isFull() && child.hasNext()) batch.addTuple(child.next());
+            return batch.getNumRows() > 0 ? batch : null;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            return child.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            return child.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void close() {
+            child.close();
+        }
+    }
+
+    /** Returns the rows of a batch operator as tuples. */
+    private static class BatchUnbatcher extends Operator {
+        private static final long serialVersionUID = 1L;
+        private BatchOpIterator child;
+        private transient Batch batch;
+        private int pos;
+
+        BatchUnbatcher(BatchOpIterator child) {
+            this.child = child;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            batch = null;
+            super.open();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (batch == null || pos == batch.size()) {
+                batch = child.nextBatch();
+                pos = 0;
+                if (batch == null) return null;
+            }
+            return batch.getTuple(pos++);
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+            batch = null;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+            batch = null;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[]{child};
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            child = BatchAdapter.toBatches(children[0]);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Batch;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BatchOpIterator is implemented by operators that can also run a batch at
+ * a time: nextBatch returns the next rows of the operator column by column
+ * (see {@link Batch}), so that the work per row is a loop over primitive
+ * arrays rather than a chain of virtual calls and Field objects.
+ * <p>
+ * Between open and close, a consumer reads an operator either with
+ * nextBatch or with hasNext/next, not both. The batch returned may be
+ * reused by the next call, so a consumer that keeps rows across calls must
+ * copy them. Operators read their children a batch at a time through
+ * {@link BatchAdapter#toBatches}, so tuple operators can sit below them,
+ * and {@link BatchAdapter#toTuples} runs a batch pipeline under a tuple
+ * operator.
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /** Number of rows per batch. */
+    int BATCH_SIZE = 1024;
+
+    /**
+     * Returns the next batch of the operator's rows.
+     *
+     * @return a batch with at least one selected row, or null if there are
+     *         no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    Batch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -11,6 +11,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The delete operator. Delete reads tuples from its child operator and removes
@@ -19,6 +21,8 @@ import java.io.IOException;
 public class Delete extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** number of tuples deleted with one {@link BufferPool#deleteTuples} call */
+    public static final int BATCH_SIZE = 1024;
     private final TransactionId t;
     private OpIterator child;
     private boolean called = false;
@@ -64,23 +68,52 @@ public class Delete extends Operator {
      * 
      * @return A 1-field tuple containing the number of deleted records.
      * @see Database#getBufferPool
-     * @see BufferPool#deleteTuple
+     * @see BufferPool#deleteTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (called) return null;
         Tuple tp = new Tuple(getTupleDesc());
         int cnt = 0;
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (child.hasNext()) {
-            try {
-                Database.getBufferPool().deleteTuple(t, child.next());
-                ++cnt;
-            } catch (Exception e) {}
+            batch.add(child.next());
+            if (batch.size() == BATCH_SIZE) {
+                cnt += deleteBatch(batch);
+                batch.clear();
+            }
         }
+        cnt += deleteBatch(batch);
         tp.setField(0, new IntField(cnt));
         called = true;
         return tp;
     }
 
+    /**
+     * Delete a batch of tuples page by page. If one of them cannot be
+     * deleted, the batch is deleted tuple by tuple, skipping those.
+     *
+     * @return the number of tuples deleted
+     */
+    private int deleteBatch(List<Tuple> batch) throws TransactionAbortedException {
+        if (batch.isEmpty()) return 0;
+        try {
+            Database.getBufferPool().deleteTuples(t, batch);
+            return batch.size();
+        } catch (TransactionAbortedException e) {
+            throw e;
+        } catch (Exception e) {
+            // a batch fails before changing anything; find the tuples that do go
+        }
+        int cnt = 0;
+        for (Tuple tp : batch) {
+            try {
+                Database.getBufferPool().deleteTuple(t, tp);
+                ++cnt;
+            } catch (Exception e) {}
+        }
+        return cnt;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return null;
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.Batch;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -10,7 +11,7 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -26,6 +27,7 @@ public class Filter extends Operator {
     private Predicate p;
     private OpIterator child;
     private OpIterator[] children;
+    private transient BatchOpIterator batchChild;
     public Filter(Predicate p, OpIterator child) {
         // some code goes here
         this.p = p;
@@ -74,6 +76,19 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of the child with at least one row passing the
+     * predicate, with only those rows selected.
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        if (batchChild == null) batchChild = BatchAdapter.toBatches(child);
+        Batch b;
+        while ((b = batchChild.nextBatch()) != null) {
+            if (p.filter(b) > 0) return b;
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
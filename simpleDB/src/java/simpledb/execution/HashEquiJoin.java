@@ -2,6 +2,10 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.Batch;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -10,7 +14,7 @@ import java.util.*;
 /**
  * The Join operator implements the relational join operation.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
@@ -18,6 +22,17 @@ public class HashEquiJoin extends Operator {
     private final TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    /** whether the first part of child1 has been read into the map */
+    transient private boolean loaded = false;
+    /**
+     * whether the join keys are ints, in which case all of child1 is read
+     * into intTable at once and child2 is read once, rather than once per
+     * MAP_SIZE rows of child1
+     */
+    transient private boolean intKeys;
+    transient private IntHashTable intTable;
+    /** the rows of child1 in tuple mode with int keys, by their number in intTable */
+    transient private List<Tuple> buildTuples;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -58,7 +73,37 @@ public class HashEquiJoin extends Operator {
     final Map<Object, List<Tuple>> map = new HashMap<>();
     public final static int MAP_SIZE = 20000;
 
+    /**
+     * @return the number of rows child1 is expected to have, from the
+     *         optimizer's estimate or the table's statistics
+     */
+    private int estimatedBuildRows() {
+        if (child1 instanceof Operator && ((Operator) child1).getEstimatedCardinality() > 0)
+            return ((Operator) child1).getEstimatedCardinality();
+        if (child1 instanceof SeqScan) {
+            TableStats stats = TableStats.getTableStats(((SeqScan) child1).getTableName());
+            if (stats != null) return stats.estimateTableCardinality(1.0);
+        }
+        return MAP_SIZE;
+    }
+
+    private void resetIntTable() {
+        if (intTable == null) intTable = new IntHashTable(estimatedBuildRows());
+        else intTable.clear();
+    }
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
+        if (intKeys) {
+            resetIntTable();
+            if (buildTuples == null) buildTuples = new ArrayList<>();
+            buildTuples.clear();
+            while (child1.hasNext()) {
+                t1 = child1.next();
+                intTable.add(((IntField) t1.getField(pred.getField1())).getValue());
+                buildTuples.add(t1);
+            }
+            return !buildTuples.isEmpty();
+        }
         int cnt = 0;
         map.clear();
         while (child1.hasNext()) {
@@ -76,7 +121,6 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
         super.open();
     }
 
@@ -88,11 +132,23 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.loaded=false;
+        if (this.buildTuples != null) this.buildTuples.clear();
+        resetProbe();
+        // don't pin the build side once closed; nextBatch and loadMap rebuild these
+        chunks = null;
+        out = null;
+        intTable = null;
+        buildIndex = null;
+        buildNext = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        loaded = false;
+        resetProbe();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -117,7 +173,11 @@ public class HashEquiJoin extends Operator {
      */
     private Tuple processList() {
         t1 = listIt.next();
+        return joinTuples();
+    }
 
+    /** @return the concatenation of t1 and t2 */
+    private Tuple joinTuples() {
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -132,6 +192,23 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!loaded) {
+            loaded = true;
+            intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE;
+            loadMap();
+        }
+        if (intKeys) {
+            // all of child1 is in intTable: walk the rows matching t2, then
+            // move on to the next tuple of child2
+            while (match < 0) {
+                if (!child2.hasNext()) return null;
+                t2 = child2.next();
+                match = intTable.first(((IntField) t2.getField(pred.getField2())).getValue());
+            }
+            t1 = buildTuples.get(match);
+            match = intTable.next(match);
+            return joinTuples();
+        }
         if (listIt != null && listIt.hasNext()) {
             return processList();
         }
@@ -160,6 +237,108 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    // batch mode: child1 is read into chunks of copied rows, numbered from
+    // 0. With int keys all of it is read, and found through intTable;
+    // otherwise it is read MAP_SIZE rows at a time, and the rows with the
+    // same key are chained through buildNext in the order they were read
+    transient private BatchOpIterator batchChild1, batchChild2;
+    transient private List<Batch> chunks;
+    transient private Map<String, int[]> buildIndex;
+    transient private int[] buildNext;
+    transient private Batch probe, out;
+    transient private int probePos, probeRow, match = -1;
+    transient private boolean done = false;
+
+    private void resetProbe() {
+        if (buildIndex != null) buildIndex.clear();
+        probe = null;
+        match = -1;
+        done = false;
+    }
+
+    /**
+     * Read the rest of child1 into the build side if the keys are ints, or
+     * otherwise its next MAP_SIZE or so rows.
+     *
+     * @return true if there were any
+     */
+    private boolean loadBuild() throws DbException, TransactionAbortedException {
+        if (intKeys) resetIntTable();
+        else buildIndex.clear();
+        int cnt = 0;
+        Batch b;
+        while ((intKeys || cnt < MAP_SIZE) && (b = batchChild1.nextBatch()) != null) {
+            for (int i = 0; i < b.size(); i++, cnt++) {
+                if (cnt / BATCH_SIZE == chunks.size()) chunks.add(new Batch(child1.getTupleDesc(), BATCH_SIZE));
+                int r = b.row(i);
+                chunks.get(cnt / BATCH_SIZE).setRow(cnt % BATCH_SIZE, b, r, 0);
+                if (intKeys) {
+                    intTable.add(b.getInts(pred.getField1())[r]);
+                    continue;
+                }
+                if (cnt == buildNext.length) buildNext = Arrays.copyOf(buildNext, cnt * 2);
+                buildNext[cnt] = -1;
+                int[] chain = buildIndex.get(b.getStrings(pred.getField1())[r]);
+                if (chain == null) {
+                    buildIndex.put(b.getStrings(pred.getField1())[r], new int[]{cnt, cnt});
+                } else {
+                    buildNext[chain[1]] = cnt;
+                    chain[1] = cnt;
+                }
+            }
+        }
+        return cnt > 0;
+    }
+
+    /**
+     * Returns the next batch of joined rows, in the same order as the tuples
+     * of fetchNext.
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        if (out == null) {
+            batchChild1 = BatchAdapter.toBatches(child1);
+            batchChild2 = BatchAdapter.toBatches(child2);
+            chunks = new ArrayList<>();
+            out = new Batch(comboTD, BATCH_SIZE);
+        }
+        if (!loaded) {
+            loaded = true;
+            intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE;
+            if (!intKeys && buildIndex == null) {
+                buildIndex = new HashMap<>();
+                buildNext = new int[MAP_SIZE + BATCH_SIZE];
+            }
+            done = !loadBuild();
+        }
+        int leftFields = child1.getTupleDesc().numFields(), n = 0;
+        while (n < BATCH_SIZE && !done) {
+            if (match >= 0) {
+                out.setRow(n, chunks.get(match / BATCH_SIZE), match % BATCH_SIZE, 0);
+                out.setRow(n++, probe, probeRow, leftFields);
+                match = intKeys ? intTable.next(match) : buildNext[match];
+            } else if (probe != null && probePos < probe.size()) {
+                probeRow = probe.row(probePos++);
+                if (intKeys) {
+                    match = intTable.first(probe.getInts(pred.getField2())[probeRow]);
+                    continue;
+                }
+                int[] chain = buildIndex.get(probe.getStrings(pred.getField2())[probeRow]);
+                match = chain == null ? -1 : chain[0];
+            } else if ((probe = batchChild2.nextBatch()) != null) {
+                probePos = 0;
+            } else if (intKeys) {
+                // all of child1 was in the build side
+                done = true;
+            } else {
+                // child2 is done: advance child1
+                batchChild2.rewind();
+                done = !loadBuild();
+            }
+        }
+        out.setNumRows(n);
+        return n > 0 ? out : null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -169,6 +348,8 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        this.out = null;
+        this.intTable = null;
     }
     
 }
@@ -0,0 +1,101 @@
+package simpledb.execution;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable maps int keys to rows, numbered from 0 in the order they
+ * were added, without boxing: the keys sit in an open-addressing table of
+ * int arrays, probed linearly, and the rows with the same key are chained
+ * through an int array in the order they were added. The rows themselves
+ * are kept by the caller, indexed by their number.
+ */
+class IntHashTable {
+
+    private int[] keys;
+    /** the first and last row of each key's chain; head -1 marks a free slot */
+    private int[] heads, tails;
+    /** the next row with the same key, or -1 */
+    private int[] next;
+    private int numKeys = 0, numRows = 0, mask;
+
+    /**
+     * Create an empty table with room for about expectedRows rows before it
+     * has to grow.
+     */
+    IntHashTable(int expectedRows) {
+        int cap = 16;
+        while (cap < 2L * expectedRows && cap < 1 << 30) cap <<= 1;
+        alloc(cap);
+        next = new int[Math.max(16, expectedRows)];
+    }
+
+    private void alloc(int cap) {
+        keys = new int[cap];
+        heads = new int[cap];
+        tails = new int[cap];
+        Arrays.fill(heads, -1);
+        mask = cap - 1;
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        int i = (h ^ h >>> 16) & mask;
+        while (heads[i] != -1 && keys[i] != key) i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * Add a row with the given key.
+     *
+     * @return the number of the row
+     */
+    int add(int key) {
+        if (numRows == next.length) next = Arrays.copyOf(next, numRows * 2);
+        int row = numRows++;
+        next[row] = -1;
+        int i = slot(key);
+        if (heads[i] == -1) {
+            keys[i] = key;
+            heads[i] = row;
+            tails[i] = row;
+            if (++numKeys * 2 > keys.length) grow();
+        } else {
+            next[tails[i]] = row;
+            tails[i] = row;
+        }
+        return row;
+    }
+
+    private void grow() {
+        int[] k = keys, h = heads, t = tails;
+        alloc(k.length * 2);
+        for (int j = 0; j < k.length; j++) {
+            if (h[j] == -1) continue;
+            int i = slot(k[j]);
+            keys[i] = k[j];
+            heads[i] = h[j];
+            tails[i] = t[j];
+        }
+    }
+
+    /** @return the first row added with key, or -1 if there is none */
+    int first(int key) {
+        return heads[slot(key)];
+    }
+
+    /** @return the row added with the same key after row, or -1 if there is none */
+    int next(int row) {
+        return next[row];
+    }
+
+    int numRows() {
+        return numRows;
+    }
+
+    /** Remove all rows, keeping the space. */
+    void clear() {
+        Arrays.fill(heads, -1);
+        numKeys = 0;
+        numRows = 0;
+    }
+}
@@ -12,7 +12,7 @@ import simpledb.common.DbException;
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
-    private int gbfield, afield, cnt;
+    private int gbfield, afield;
     private Type gbfieldtype;
     private Op what;
     private LinkedHashMap<Field, Map.Entry<Integer, Integer>> mp = new LinkedHashMap<>();
@@ -50,32 +50,52 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         Field af = tup.getField(afield), tf = gbfield == -1 ? null : tup.getField(gbfield);
-        int new_val = ((IntField)af).getValue();
-        int tmp = Integer.MIN_VALUE;
-        Map.Entry<Integer, Integer> val;
+        merge(tf, ((IntField)af).getValue(), 1);
+    }
+
+    public void mergeBatchIntoGroup(Batch b) {
+        int[] vals = b.getInts(afield);
+        int n = b.size();
+        if (n == 0) return;
+        if (gbfield != -1) {
+            for (int i = 0; i < n; i++) {
+                int r = b.row(i);
+                merge(b.getField(gbfield, r), vals[r], 1);
+            }
+            return;
+        }
+        // a single group: fold the batch first, then merge it as one value
+        int tmp = vals[b.row(0)];
+        for (int i = 1; i < n; i++) {
+            int v = vals[b.row(i)];
+            if (what == Op.MIN) tmp = Math.min(tmp, v);
+            else if (what == Op.MAX) tmp = Math.max(tmp, v);
+            else tmp += v;
+        }
+        merge(null, tmp, n);
+    }
+
+    /**
+     * Merge into group tf the aggregate val of n values: their minimum,
+     * maximum or sum, depending on the operator.
+     */
+    private void merge(Field tf, int val, int n) {
+        Map.Entry<Integer, Integer> old = mp.get(tf);
+        int tmp;
         switch (what) {
             case MIN:
-                tmp = Math.min(mp.getOrDefault(tf, new AbstractMap.SimpleEntry<>(-1, new_val)).getValue(), 
-                      new_val);
+                tmp = old == null ? val : Math.min(old.getValue(), val);
                 break;
             case MAX:
-                tmp = Math.max(mp.getOrDefault(tf, new AbstractMap.SimpleEntry<>(-1, new_val)).getValue(), 
-                      new_val);
+                tmp = old == null ? val : Math.max(old.getValue(), val);
                 break;
-            case COUNT:
-            case SUM_COUNT:
-            case SC_AVG:
-            case AVG:
-                cnt = mp.getOrDefault(tf, new AbstractMap.SimpleEntry<>(0, 0)).getKey() + 1;
-            case SUM:
-                tmp = mp.getOrDefault(tf, new AbstractMap.SimpleEntry<>(-1, 0)).getValue() + new_val;
+            default:
+                tmp = (old == null ? 0 : old.getValue()) + val;
                 break;
         }
-      
-        if (what == Op.MIN || what == Op.MAX || what == Op.SUM) val = new AbstractMap.SimpleEntry<>(-1, tmp);
-        else val = new AbstractMap.SimpleEntry<>(cnt, tmp);
-        
-        mp.put(tf, val);
+
+        if (what == Op.MIN || what == Op.MAX || what == Op.SUM) mp.put(tf, new AbstractMap.SimpleEntry<>(-1, tmp));
+        else mp.put(tf, new AbstractMap.SimpleEntry<>((old == null ? 0 : old.getKey()) + n, tmp));
     }
 
     /**
@@ -108,7 +128,7 @@ public class IntegerAggregator implements Aggregator {
                 tp.setField(0, ent.getKey());
                 
                 int sum = ent.getValue().getValue().intValue(), cnt = ent.getValue().getKey().intValue();
-                if (what != Op.SUM_COUNT && sum != -1 && cnt != -1) sum /= cnt;
+                if (what == Op.AVG || what == Op.SC_AVG) sum /= cnt;
                 
                 tp.setField(1, new IntField(what == Op.COUNT ? cnt : sum));
                 if (what == Op.SUM_COUNT) tp.setField(2, new IntField(cnt));
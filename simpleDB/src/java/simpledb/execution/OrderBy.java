@@ -2,6 +2,8 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Batch;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -11,7 +13,7 @@ import java.util.*;
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
  */
-public class OrderBy extends Operator {
+public class OrderBy extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
@@ -21,6 +23,14 @@ public class OrderBy extends Operator {
     private final String orderByFieldName;
     private Iterator<Tuple> it;
     private final boolean asc;
+    /** whether the child has been read and sorted since open */
+    private transient boolean loaded = false;
+    // batch mode: the child's rows copied into chunks, the order to return
+    // them in, and how many of them have been returned
+    private transient List<Batch> chunks;
+    private transient int[] order;
+    private transient int numRows, emitted;
+    private transient Batch out;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -62,21 +72,83 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        childTups.clear();
+        it = null;
+        loaded = false;
+        super.open();
+    }
+
+    private void load() throws DbException, TransactionAbortedException {
+        loaded = true;
         // load all the tuples in a collection, and sort it
         while (child.hasNext())
             childTups.add(child.next());
         childTups.sort(new TupleComparator(orderByField, asc));
         it = childTups.iterator();
-        super.open();
+    }
+
+    private void loadBatches() throws DbException, TransactionAbortedException {
+        loaded = true;
+        if (chunks == null) chunks = new ArrayList<>();
+        BatchOpIterator bc = BatchAdapter.toBatches(child);
+        numRows = 0;
+        emitted = 0;
+        Batch b;
+        while ((b = bc.nextBatch()) != null) {
+            for (int i = 0; i < b.size(); i++, numRows++) {
+                if (numRows / BATCH_SIZE == chunks.size()) chunks.add(new Batch(td, BATCH_SIZE));
+                chunks.get(numRows / BATCH_SIZE).setRow(numRows % BATCH_SIZE, b, b.row(i), 0);
+            }
+        }
+        order = new int[numRows];
+        if (td.getFieldType(orderByField) == Type.INT_TYPE) {
+            // sort (key, row) pairs packed in longs: the key in the high half,
+            // complemented to sort descending, and the row in the low half, so
+            // that equal keys keep the child's order
+            long[] keys = new long[numRows];
+            for (int i = 0; i < numRows; i++) {
+                int key = chunks.get(i / BATCH_SIZE).getInts(orderByField)[i % BATCH_SIZE];
+                keys[i] = (long) (asc ? key : ~key) << 32 | i;
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < numRows; i++) order[i] = (int) keys[i];
+        } else {
+            Integer[] rows = new Integer[numRows];
+            for (int i = 0; i < numRows; i++) rows[i] = i;
+            Comparator<Integer> cmp = Comparator.comparing(
+                    i -> chunks.get(i / BATCH_SIZE).getStrings(orderByField)[i % BATCH_SIZE]);
+            // a stable sort, like the one of childTups
+            Arrays.sort(rows, asc ? cmp : cmp.reversed());
+            for (int i = 0; i < numRows; i++) order[i] = rows[i];
+        }
+    }
+
+    /**
+     * Returns the next batch of the child's rows in order; the child is
+     * read a batch at a time.
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        if (!loaded) loadBatches();
+        if (out == null) out = new Batch(td, BATCH_SIZE);
+        int n = Math.min(BATCH_SIZE, numRows - emitted);
+        for (int j = 0; j < n; j++) {
+            int r = order[emitted++];
+            out.setRow(j, chunks.get(r / BATCH_SIZE), r % BATCH_SIZE, 0);
+        }
+        out.setNumRows(n);
+        return n > 0 ? out : null;
     }
 
     public void close() {
         super.close();
         it = null;
+        chunks = null;
+        order = null;
     }
 
     public void rewind() {
         it = childTups.iterator();
+        emitted = 0;
     }
 
     /**
@@ -86,7 +158,8 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
+    protected Tuple fetchNext() throws NoSuchElementException, DbException, TransactionAbortedException {
+        if (!loaded) load();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
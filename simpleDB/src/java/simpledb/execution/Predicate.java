@@ -1,6 +1,8 @@
 package simpledb.execution;
 
+import simpledb.storage.Batch;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
@@ -103,6 +105,53 @@ public class Predicate implements Serializable {
         return tmp.compare(op, operand);
     }
 
+    /**
+     * Narrows the selection of b to the rows whose field passes this
+     * predicate, comparing like {@link #filter(Tuple)} does but on the
+     * batch's column.
+     *
+     * @param b
+     *            The batch to filter
+     * @return the number of rows left selected
+     */
+    public int filter(Batch b) {
+        int n = b.size(), k = 0;
+        int[] sel = b.getSelection(), out = b.selectionVector();
+        if (operand instanceof IntField) {
+            int[] col = b.getInts(field);
+            int c = ((IntField) operand).getValue();
+            // one loop per operator, so that the comparison is not decided per row
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) { int r = sel == null ? i : sel[i]; if (col[r] == c) out[k++] = r; }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) { int r = sel == null ? i : sel[i]; if (col[r] != c) out[k++] = r; }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) { int r = sel == null ? i : sel[i]; if (col[r] > c) out[k++] = r; }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { int r = sel == null ? i : sel[i]; if (col[r] >= c) out[k++] = r; }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) { int r = sel == null ? i : sel[i]; if (col[r] < c) out[k++] = r; }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) { int r = sel == null ? i : sel[i]; if (col[r] <= c) out[k++] = r; }
+                    break;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int r = sel == null ? i : sel[i];
+                if (b.getField(field, r).compare(op, operand)) out[k++] = r;
+            }
+        }
+        b.setSelection(out, k);
+        return k;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
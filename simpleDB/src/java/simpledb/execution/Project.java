@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.storage.Batch;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -11,12 +12,14 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private transient BatchOpIterator batchChild;
+    private transient int[] outCols;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -81,6 +84,20 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Returns the projected columns of the child's next batch; the values
+     * are shared with it rather than copied.
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        if (batchChild == null) {
+            batchChild = BatchAdapter.toBatches(child);
+            outCols = new int[outFieldIds.size()];
+            for (int i = 0; i < outCols.length; i++) outCols[i] = outFieldIds.get(i);
+        }
+        Batch b = batchChild.nextBatch();
+        return b == null ? null : b.project(td, outCols);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
@@ -90,6 +107,7 @@ public class Project extends Operator {
     public void setChildren(OpIterator[] children) {
         if (this.child != children[0]) {
             this.child = children[0];
+            batchChild = null;
         }
     }
 
@@ -5,7 +5,10 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.storage.Batch;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import java.util.*;
@@ -15,7 +18,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -39,6 +42,8 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator iter;
+    private transient HeapFile.BatchReader batchReader;
+    private transient Batch batch;
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         this.tid = tid;
         this.tableid = tableid;
@@ -86,6 +91,25 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         if (iter == null) return;
         iter.open();
+        batchReader = null;
+    }
+
+    /**
+     * Returns the next batch of the table's tuples. Heap files copy them
+     * straight from their pages into the batch; other files are read a
+     * tuple at a time.
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        if (iter == null) return null;
+        if (batch == null) batch = new Batch(getTupleDesc(), BATCH_SIZE);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile)) {
+            batch.clear();
+            while (!batch.isFull() && iter.hasNext()) batch.addTuple(iter.next());
+            return batch.getNumRows() > 0 ? batch : null;
+        }
+        if (batchReader == null) batchReader = ((HeapFile) f).batchReader(tid);
+        return batchReader.next(batch) ? batch : null;
     }
 
     /**
@@ -119,11 +143,14 @@ public class SeqScan implements OpIterator {
     public void close() {
         if (iter == null) return;
         iter.close();
+        if (batchReader != null) batchReader.close();
+        batchReader = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         if (iter == null) return;
         iter.rewind();
+        if (batchReader != null) batchReader.rewind();
     }
 }
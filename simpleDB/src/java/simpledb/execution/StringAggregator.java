@@ -48,6 +48,17 @@ public class StringAggregator implements Aggregator {
         mp.put(tp, mp.getOrDefault(tp, 0) + 1);
     }
 
+    public void mergeBatchIntoGroup(Batch b) {
+        if (gbfield == -1) {
+            if (b.size() > 0) mp.put(null, mp.getOrDefault(null, 0) + b.size());
+            return;
+        }
+        for (int i = 0; i < b.size(); i++) {
+            Field tp = b.getField(gbfield, b.row(i));
+            mp.put(tp, mp.getOrDefault(tp, 0) + 1);
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
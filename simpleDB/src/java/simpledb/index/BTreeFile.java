@@ -2,9 +2,12 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
@@ -32,6 +35,19 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final PageFile pf;
+
+	/** Most leaf pages read ahead and not yet consumed, per file. */
+	public static final int MAX_READ_AHEAD = 16;
+	private static final ExecutorService readAheadExecutor = Executors.newFixedThreadPool(2, r -> {
+		Thread t = new Thread(r, "btree-read-ahead");
+		t.setDaemon(true);
+		return t;
+	});
+	/** bytes of leaf pages read ahead for scans, by page number, until readPage takes them */
+	private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> readAhead = new ConcurrentHashMap<>();
+	private volatile boolean readAheadEnabled = true;
+	private final AtomicLong readAheads = new AtomicLong(), readAheadHits = new AtomicLong();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +62,11 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		try {
+			pf = new PageFile(f);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -77,6 +98,11 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		pf.close();
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -86,50 +112,32 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				pf.read(0, pageBuf);
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			}
+			byte[] pageBuf = takeReadAhead(id.getPageNumber());
+			if (pageBuf == null) {
+				pageBuf = new byte[BufferPool.getPageSize()];
+				pf.read(offset(id.getPageNumber()), pageBuf);
+			}
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+			if (id.pgcateg() == BTreePageId.INTERNAL) {
+				return new BTreeInternalPage(id, pageBuf, keyField);
+			} else if (id.pgcateg() == BTreePageId.LEAF) {
+				return new BTreeLeafPage(id, pageBuf, keyField);
+			} else { // id.pgcateg() == BTreePageId.HEADER
+				return new BTreeHeaderPage(id, pageBuf);
+			}
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Read past end of table");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -139,26 +147,91 @@ public class BTreeFile implements DbFile {
 	 */
 	public void writePage(Page page) throws IOException {
 		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) pf.write(0, page.getPageData());
+		else writePageData(id.getPageNumber(), page.getPageData());
+	}
+
+	/** @return the file offset of the (non root pointer) page with the given number */
+	private long offset(int pgno) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgno - 1) * BufferPool.getPageSize();
+	}
+
+	private void writePageData(int pgno, byte[] data) throws IOException {
+		// dropped on both sides of the write: a read ahead racing with it may have seen part of it
+		readAhead.remove(pgno);
+		pf.write(offset(pgno), data);
+		readAhead.remove(pgno);
+	}
+
+	/**
+	 * Start reading a leaf page in the background unless it is cached, so
+	 * that a scan moving on to it does not wait for the read. The scan
+	 * iterators call this with the right sibling of each leaf they reach.
+	 */
+	void readAhead(BTreePageId pid) {
+		if (!readAheadEnabled || pid == null || Database.getBufferPool().isCached(pid)) return;
+		// abandoned scans leave pages behind; they are only hints, so drop them all
+		if (readAhead.size() >= MAX_READ_AHEAD) readAhead.clear();
+		readAhead.computeIfAbsent(pid.getPageNumber(), pgno -> {
+			readAheads.incrementAndGet();
+			return CompletableFuture.supplyAsync(() -> {
+				byte[] buf = new byte[BufferPool.getPageSize()];
+				try {
+					pf.read(offset(pgno), buf);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+				return buf;
+			}, readAheadExecutor);
+		});
+	}
+
+	/** @return the bytes of page pgno if they were read ahead, or null */
+	private byte[] takeReadAhead(int pgno) {
+		CompletableFuture<byte[]> ahead = readAhead.remove(pgno);
+		if (ahead == null) return null;
+		try {
+			byte[] buf = ahead.join();
+			readAheadHits.incrementAndGet();
+			return buf;
+		} catch (CompletionException | CancellationException e) {
+			return null; // read it again
 		}
 	}
+
+	/**
+	 * Read ahead the right sibling of each leaf a scan reaches. On by
+	 * default.
+	 */
+	public void setReadAhead(boolean enabled) {
+		readAheadEnabled = enabled;
+		if (!enabled) readAhead.clear();
+	}
+
+	public boolean isReadAhead() {
+		return readAheadEnabled;
+	}
+
+	/** @return the number of leaf pages read ahead */
+	public long getReadAheadCount() {
+		return readAheads.get();
+	}
+
+	/** @return the number of pages read ahead that readPage then used */
+	public long getReadAheadHits() {
+		return readAheadHits.get();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((pf.size() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -917,6 +990,59 @@ public class BTreeFile implements DbFile {
         return new ArrayList<>(dirtypages.values());
 	}
 
+	/**
+	 * Fill an empty B+ tree with tuples by building a new tree bottom up, like
+	 * BTreeFileEncoder does offline, rather than inserting the tuples one by one.
+	 * The pages of the new tree are appended to the file and forced to disk
+	 * without being logged or cached. Only the switch of the root pointer over to
+	 * them goes through the buffer pool and the log, so if the transaction aborts
+	 * the tree is empty again and the new pages are left unused at the end of the
+	 * file. The caller must hold an exclusive lock on the table.
+	 *
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to load, sorted on the key field
+	 * @return a list of all pages that were dirtied by this operation: the root
+	 * pointer page, and the header pages recording the old root as empty
+	 * @throws DbException if the tree is not empty
+	 * @see BTreeFileEncoder#buildTree
+	 */
+	public List<Page> bulkLoad(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		if(!isEmpty(tid)) {
+			throw new DbException("can only bulk load an empty B+ tree");
+		}
+		BTreePageId oldRootId = getRootPtrPage(tid, dirtypages).getRootId();
+
+		Type[] typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		BTreePageId rootId = BTreeFileEncoder.buildTree(this, tuples, BufferPool.getPageSize(),
+				typeAr.length, typeAr, keyField);
+		// the new pages must be on disk before a commit makes the root pointer to them durable
+		pf.force();
+
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid),
+				Permissions.READ_WRITE);
+		rootPtr.setRootId(rootId);
+		if(oldRootId != null) {
+			setEmptyPage(tid, dirtypages, oldRootId.getPageNumber());
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * @param tid - the transaction id
+	 * @return true if this B+ tree holds no tuples
+	 */
+	public boolean isEmpty(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		return rootId == null || rootId.pgcateg() == BTreePageId.LEAF
+				&& ((BTreeLeafPage) getPage(tid, dirtypages, rootId, Permissions.READ_ONLY)).getNumTuples() == 0;
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -1029,10 +1155,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		writePageData(emptyPageNo, BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1184,6 +1307,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, null);
+		f.readAhead(curp.getRightSiblingId());
 		it = curp.iterator();
 		closed = false;
 		opened = true;
@@ -1208,6 +1332,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				f.readAhead(curp.getRightSiblingId());
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1277,6 +1402,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, null);
 		}
+		// an equality search rarely leaves its first leaf
+		if (ipred.getOp() != Op.EQUALS) f.readAhead(curp.getRightSiblingId());
 		it = curp.iterator();
 		closed = false;
 		opened = true;
@@ -1319,6 +1446,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				f.readAhead(curp.getRightSiblingId());
 				it = curp.iterator();
 			}
 		}
@@ -219,6 +219,41 @@ public class BTreeFileEncoder {
 
 		// add the tuples to B+ tree file
 		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		int tableid = bf.getId();
+
+		// first add some bytes for the root pointer page
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
+				BTreeRootPtrPage.createEmptyPageData()));
+
+		BTreePageId root = buildTree(bf, tuples, npagebytes, numFields, typeAr, keyField);
+
+		// update the root pointer to point to the root page
+		byte[] rootPtrBytes = convertToRootPtrPage(root.getPageNumber(), root.pgcateg(), 0);
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Build a B+ tree over tuples bottom up, appending its pages to the end of
+	 * bf without going through the buffer pool. Leaf pages are filled up as 
+	 * they are written and internal pages are written as the level below them
+	 * fills up. The parent of the new root is bf's root pointer page, but the
+	 * root pointer page itself is left alone.
+	 * 
+	 * @param bf - the B+ tree file to append the pages to
+	 * @param tuples - the tuples, sorted on the keyField
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields per tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyField - the field of the tuples the B+ tree is keyed on
+	 * @return the id of the root page of the new tree
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	public static BTreePageId buildTree(BTreeFile bf, List<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int keyField) throws IOException, DbException {
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
 
@@ -237,10 +272,6 @@ public class BTreeFileEncoder {
 
 		List<List<BTreeEntry>> entries = new ArrayList<>();
 
-		// first add some bytes for the root pointer page
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
-				BTreeRootPtrPage.createEmptyPageData()));
-
 		// next iterate through all the tuples and write out leaf pages
 		// and internal pages as they fill up.
 		// We wait until we have two full pages of tuples before writing out the first page
@@ -322,18 +353,14 @@ public class BTreeFileEncoder {
 		// Write out the remaining internal pages
 		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
 
-		// update the root pointer to point to the last page of the file
-		int root = bf.numPages();
-		int rootCategory = (root > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
-		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
+		// the root is the last page of the file, a leaf if it is the only page
+		BTreePageId root = new BTreePageId(tableid, bf.numPages(), 
+				entries.isEmpty() ? BTreePageId.LEAF : BTreePageId.INTERNAL);
 
 		// set all the parent and sibling pointers
-		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
+		setParents(bf, root, BTreeRootPtrPage.getId(tableid));
 		setRightSiblingPtrs(bf, lastPid, null);
-
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
+		return root;
 	}
 
 	/**
@@ -19,6 +19,7 @@ import simpledb.transaction.TransactionId;
  */
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
+	private volatile long lsn = -1;
 	protected volatile TransactionId dirtier = null;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
@@ -134,6 +135,18 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the LSN of the last log record that changed this page, or -1
+	 * if none was logged since it was read
+	 */
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -18,6 +18,7 @@ public class BTreeRootPtrPage implements Page {
 	public final static int PAGE_SIZE = 9;
 
 	private boolean dirty = false;
+	private volatile long lsn = -1;
 	private TransactionId dirtier = null;
 
 	private final BTreePageId pid;
@@ -140,6 +141,18 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	/**
+	 * Returns the LSN of the last log record that changed this page, or -1
+	 * if none was logged since it was read
+	 */
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
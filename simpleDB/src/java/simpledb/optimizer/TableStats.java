@@ -97,7 +97,7 @@ public class TableStats {
         min = Integer.MAX_VALUE; max = Integer.MIN_VALUE;
         this.tableid = tableid;
         iocost = ioCostPerPage;
-        iter = hf.iterator(tid);
+        iter = hf.iterator(tid, BufferAccessStrategy.bulkRead());
         try {
             iter.open();
             while (iter.hasNext()) {
@@ -111,6 +111,9 @@ public class TableStats {
                 }
             }  
         } catch (Exception e) {}
+        iter.close();
+        // release the scan's locks (or snapshot) instead of holding them forever
+        Database.getBufferPool().transactionComplete(tid);
         ihist = new IntHistogram(NUM_HIST_BINS, min, max);
     }
 
@@ -170,6 +173,8 @@ public class TableStats {
                 else shist.addValue(((StringField) cur).getValue());
             }
         } catch (Exception e) {}
+        iter.close();
+        Database.getBufferPool().transactionComplete(tid);
     } 
 
     /**
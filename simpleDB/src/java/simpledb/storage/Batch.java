@@ -0,0 +1,188 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+/**
+ * Batch holds a number of rows of a TupleDesc column by column, for
+ * operators that process a batch of rows per call rather than a tuple (see
+ * simpledb.execution.BatchOpIterator). An int column is an int array and a
+ * string column a String array; columns without a type, like the group
+ * column of an aggregate without grouping, hold nothing and read as null.
+ * <p>
+ * Rows 0 to getNumRows() - 1 hold values, but only the selected ones are
+ * part of the batch. A selection vector lists them in order, so that a
+ * filter drops rows without moving any values; without one, every row is
+ * selected. Batches made by {@link #project} share their columns with the
+ * batch they were made from.
+ */
+public class Batch {
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints;
+    private final String[][] strings;
+    private int numRows = 0;
+    /** the selected rows, or null if all are */
+    private int[] sel = null;
+    private int selSize = 0;
+    /** this batch's own selection vector, allocated on first use */
+    private int[] selBuf = null;
+
+    /**
+     * Create an empty batch with room for capacity rows of td.
+     */
+    public Batch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int j = 0; j < n; j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) ints[j] = new int[capacity];
+            else if (td.getFieldType(j) == Type.STRING_TYPE) strings[j] = new String[capacity];
+        }
+    }
+
+    private Batch(TupleDesc td, int capacity, int[][] ints, String[][] strings) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.strings = strings;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows this batch has room for */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows holding values, selected or not */
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * Set the number of rows holding values, after writing them into the
+     * columns, and select all of them.
+     */
+    public void setNumRows(int numRows) {
+        if (numRows > capacity) throw new IllegalArgumentException(numRows + " rows do not fit in " + capacity);
+        this.numRows = numRows;
+        sel = null;
+    }
+
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /** Drop all rows. */
+    public void clear() {
+        setNumRows(0);
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return sel == null ? numRows : selSize;
+    }
+
+    /** @return the row of the i-th selected row */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /** @return the selected rows, in the first size() entries, or null if all rows are */
+    public int[] getSelection() {
+        return sel;
+    }
+
+    /**
+     * Select the rows listed in the first size entries of sel, in order.
+     * sel is normally this batch's own {@link #selectionVector}, which can
+     * be narrowed in place.
+     */
+    public void setSelection(int[] sel, int size) {
+        this.sel = sel;
+        this.selSize = size;
+    }
+
+    /**
+     * @return a selection vector of capacity() entries owned by this batch,
+     *         which holds the current selection if there is one
+     */
+    public int[] selectionVector() {
+        if (selBuf == null) selBuf = new int[capacity];
+        return selBuf;
+    }
+
+    /** @return the values of int column col */
+    public int[] getInts(int col) {
+        return ints[col];
+    }
+
+    /** @return the values of string column col */
+    public String[] getStrings(int col) {
+        return strings[col];
+    }
+
+    /** @return the value of column col in row as a Field, or null if the column has no type */
+    public Field getField(int col, int row) {
+        if (ints[col] != null) return new IntField(ints[col][row]);
+        if (strings[col] != null) return new StringField(strings[col][row], Type.STRING_LEN);
+        return null;
+    }
+
+    /** @return the i-th selected row as a tuple */
+    public Tuple getTuple(int i) {
+        int r = row(i);
+        Tuple t = new Tuple(td);
+        for (int j = 0; j < ints.length; j++) t.setField(j, getField(j, r));
+        return t;
+    }
+
+    /**
+     * Append t as a new row. The batch must have room and no selection.
+     */
+    public void addTuple(Tuple t) {
+        if (isFull()) throw new IllegalStateException("batch is full");
+        for (int j = 0; j < ints.length; j++) {
+            if (ints[j] != null) ints[j][numRows] = ((IntField) t.getField(j)).getValue();
+            else if (strings[j] != null) strings[j][numRows] = ((StringField) t.getField(j)).getValue();
+        }
+        numRows++;
+    }
+
+    /**
+     * Copy the columns of row srcRow of src into row of this batch,
+     * starting at column firstCol; their types must match.
+     */
+    public void setRow(int row, Batch src, int srcRow, int firstCol) {
+        for (int j = 0; j < src.ints.length; j++) {
+            if (src.ints[j] != null) ints[firstCol + j][row] = src.ints[j][srcRow];
+            else if (src.strings[j] != null) strings[firstCol + j][row] = src.strings[j][srcRow];
+        }
+    }
+
+    /**
+     * @return a batch of the given columns of this one, sharing their
+     *         values and with the same rows selected
+     */
+    public Batch project(TupleDesc td, int[] cols) {
+        int[][] pi = new int[cols.length][];
+        String[][] ps = new String[cols.length][];
+        for (int j = 0; j < cols.length; j++) {
+            pi[j] = ints[cols[j]];
+            ps[j] = strings[cols[j]];
+        }
+        Batch b = new Batch(td, capacity, pi, ps);
+        b.numRows = numRows;
+        if (sel != null) {
+            // a copy, so that narrowing one selection leaves the other alone
+            System.arraycopy(sel, 0, b.selectionVector(), 0, selSize);
+            b.setSelection(b.selBuf, selSize);
+        }
+        return b;
+    }
+}
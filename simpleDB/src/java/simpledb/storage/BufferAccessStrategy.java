@@ -0,0 +1,69 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+/**
+ * A BufferAccessStrategy lets a large sequential read recycle a small,
+ * private ring of buffer pool frames instead of cycling every page of the
+ * table through the shared pool (cf. PostgreSQL's BAS_BULKREAD). Pages
+ * read through a strategy are still cached in the BufferPool, so locking,
+ * dirty tracking and hits from other transactions work as usual; but once
+ * the ring is full, reading the next page drops the page that occupied the
+ * reused ring slot, as long as it is still clean and nobody else has
+ * touched it in the meantime.
+ * <p>
+ * A strategy belongs to a single scan and must not be shared.
+ *
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, BufferAccessStrategy)
+ */
+public class BufferAccessStrategy {
+
+    /** Largest ring handed out by {@link #bulkRead()}. */
+    public static final int MAX_RING_SIZE = 16;
+
+    private final PageId[] ring;
+    private int next = 0;
+
+    /**
+     * @param ringSize number of frames this strategy may recycle
+     */
+    public BufferAccessStrategy(int ringSize) {
+        if (ringSize < 1) throw new IllegalArgumentException("ring size must be positive");
+        ring = new PageId[ringSize];
+    }
+
+    /**
+     * @return a bulk-read strategy whose ring is an eighth of the buffer
+     *         pool, capped at {@link #MAX_RING_SIZE} frames.
+     */
+    public static BufferAccessStrategy bulkRead() {
+        int poolPages = Database.getBufferPool().getNumPages();
+        return new BufferAccessStrategy(Math.max(1, Math.min(MAX_RING_SIZE, poolPages / 8)));
+    }
+
+    /**
+     * @return a bulk-read strategy if a table of numPages pages is too big
+     *         to scan through the shared pool (more than a quarter of it),
+     *         otherwise null.
+     */
+    public static BufferAccessStrategy forScan(int numPages) {
+        return numPages > Database.getBufferPool().getNumPages() / 4 ? bulkRead() : null;
+    }
+
+    public int getRingSize() {
+        return ring.length;
+    }
+
+    /**
+     * Put a newly read page into the next ring slot.
+     *
+     * @param pid the page that was read through this strategy
+     * @return the page that previously occupied the slot, or null
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = ring[next];
+        ring[next] = pid;
+        next = (next + 1) % ring.length;
+        return old;
+    }
+}
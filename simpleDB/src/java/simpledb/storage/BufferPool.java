@@ -4,12 +4,15 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeFileEncoder;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.*;
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -23,168 +26,6 @@ import java.util.*;
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    public class Locksmith {
-        private ConcurrentHashMap<PageId, ArrayList<TransactionId>> reader_id = new ConcurrentHashMap<>();
-        private ConcurrentHashMap<PageId, TransactionId> writer_id = new ConcurrentHashMap<>();
-        private ConcurrentHashMap<TransactionId, HashSet<TransactionId>> wait_for = new ConcurrentHashMap<>();
-        private Semaphore lock;
-        private ConcurrentHashMap<PageId, Semaphore> locks= new ConcurrentHashMap<>();
-        private final long TIME_BOUND;
-           
-        public Locksmith() {
-            this(1000);
-        }
-        
-        public Locksmith(long tBound) {
-            TIME_BOUND = tBound;
-        }
-        
-        public boolean holdsLock(TransactionId tid, PageId pid) {
-            return (reader_id.containsKey(pid) && reader_id.get(pid).contains(tid)) || 
-                   (writer_id.containsKey(pid) && writer_id.get(pid) == tid);
-        }
-        
-        private boolean acquire_lock(PageId pid, TransactionId tid) throws TransactionAbortedException {
-            lock = locks.getOrDefault(pid, new Semaphore(1));
-            boolean locked = false;
-            tryBreakCycle(tid);
-            locked = lock.tryAcquire();
-            if (!locks.containsKey(pid)) locks.put(pid, lock);
-            if (locked && wait_for.containsKey(tid)) wait_for.remove(tid);
-            return locked;
-        }
-        
-        private void done_waiting(TransactionId tid) {
-            Iterator<Map.Entry<TransactionId, HashSet<TransactionId>>> it = wait_for.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<TransactionId, HashSet<TransactionId>> entry = it.next();
-                if (entry.getValue().contains(tid)) entry.getValue().remove(tid);
-                if (entry.getValue().isEmpty()) it.remove();
-            }
-        }
-        
-        private void release_lock(PageId pid) {
-            try { locks.get(pid).release(); } catch (Exception e) {}
-        }
-        
-        public void acquireLock(TransactionId tid, PageId pid, Permissions perm) 
-        throws TransactionAbortedException {
-            while (true) {
-                synchronized((Integer)pid.hashCode()) {
-                    if (writer_id.containsKey(pid) && writer_id.get(pid) == tid) return;
-                    switch (perm) {
-                        case READ_ONLY: {
-                            if (!reader_id.containsKey(pid)) {  
-                                if (acquire_lock(pid, tid)) {
-                                    reader_id.put(pid, new ArrayList<>(Arrays.asList(tid)));
-                                    return;
-                                }
-                            } else {
-                                wait_for.remove(tid);
-                                reader_id.get(pid).add(tid);
-                                return;
-                            }
-                            wait_for.computeIfAbsent(tid, k -> new HashSet<>()).add(writer_id.get(pid));
-                            relinquish(tid);
-                            break; 
-                        }
-                        case READ_WRITE: {
-                            if (reader_id.containsKey(pid) && reader_id.get(pid).get(0) == tid) {
-                                writer_id.put(pid, tid);
-                                reader_id.remove(pid);
-                                return;
-                            } else if (acquire_lock(pid, tid)) {
-                                writer_id.put(pid, tid);
-                                return;
-                            }
-                            if (writer_id.containsKey(pid))
-                                wait_for.computeIfAbsent(tid, k -> new HashSet<>()).add(writer_id.get(pid));
-                            else if (reader_id.containsKey(pid))
-                                wait_for.computeIfAbsent(tid, k -> new HashSet<>()).add(reader_id.get(pid).get(0));
-                            relinquish(tid);
-                            break;
-                        }
-                        default: throw new TransactionAbortedException();
-                    }
-                }
-            }
-        }
-        
-        private boolean findCycle(TransactionId tid, HashSet<TransactionId> vis, HashSet<TransactionId> stk) {
-            if (!vis.contains(tid)) {
-                vis.add(tid); stk.add(tid);
-                if (wait_for.containsKey(tid)) 
-                    for (TransactionId t : wait_for.get(tid))
-                        if (stk.contains(t) || (!vis.contains(t) && findCycle(t, vis, stk))) 
-                            return true;
-            }              
-            stk.remove(tid);
-            return false;
-        }
-        
-        private void tryBreakCycle(TransactionId tid) throws TransactionAbortedException {
-            if (!wait_for.containsKey(tid)) return;
-            if (findCycle(tid, new HashSet<>(), new HashSet<>())) throw new TransactionAbortedException();
-        }
-     
-        public void releaseLock(TransactionId tid, PageId pid) {
-            if (tid == null) {
-                if (reader_id.containsKey(pid)) {
-                    for (TransactionId t : reader_id.get(pid)) done_waiting(t);
-                    reader_id.remove(pid);
-                }
-                if (writer_id.containsKey(pid)) {
-                    done_waiting(writer_id.get(pid));
-                    writer_id.remove(pid);
-                }
-                if (locks.containsKey(pid)) {
-                    release_lock(pid);
-                    locks.remove(pid); 
-                }
-                return;
-            }
-            done_waiting(tid);
-            if (pid == null) {
-                Iterator<Map.Entry<PageId, TransactionId>> witer = writer_id.entrySet().iterator();
-                while (witer.hasNext()) {
-                    Map.Entry<PageId, TransactionId> entry = witer.next();
-                    if(entry.getValue() == tid) {
-                        release_lock(entry.getKey());
-                        witer.remove();
-                    }
-                }
-                    
-                Iterator<Map.Entry<PageId, ArrayList<TransactionId>>> riter = reader_id.entrySet().iterator();
-                while (riter.hasNext()) {
-                    Map.Entry<PageId, ArrayList<TransactionId>> entry = riter.next();
-                    if(entry.getValue().contains(tid)){
-                        entry.getValue().remove(tid);
-                        if (entry.getValue().size() == 0) {
-                            release_lock(entry.getKey());
-                            riter.remove();
-                        }
-                    }
-                }
-            }
-            else if (writer_id.containsKey(pid) && writer_id.get(pid) == tid)  {
-                writer_id.remove(pid);
-                release_lock(pid);
-            } 
-            else if (reader_id.containsKey(pid) && reader_id.get(pid).contains(tid)) {
-                reader_id.get(pid).remove(tid);
-                if (reader_id.get(pid).size() == 0) {
-                    release_lock(pid);
-                    reader_id.remove(pid);
-                }
-            }
-        }
-        
-        private void relinquish(TransactionId tid) throws TransactionAbortedException {
-            long time_used = System.currentTimeMillis() - tid.getStartTime();
-            if (time_used >= TIME_BOUND) throw new TransactionAbortedException();
-            Thread.yield();
-        }
-    }
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
@@ -195,15 +36,52 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
     private int numPages;
     protected ConcurrentHashMap<PageId, Page> pge = new ConcurrentHashMap<>();
-    private Locksmith lock;
+    private final LockManager lock;
+    private final VersionStore versions = new VersionStore();
+    private final ReplacementPolicy policy;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    /** the pages each transaction dirtied, so commit and abort only visit those */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedBy = new ConcurrentHashMap<>();
+    /** the heap files each transaction bulk loaded into */
+    private final ConcurrentHashMap<TransactionId, Set<HeapFile>> bulkLoads = new ConcurrentHashMap<>();
+    /** pages read through a BufferAccessStrategy and not referenced by anybody else since */
+    private final ConcurrentHashMap<PageId, BufferAccessStrategy> ringPages = new ConcurrentHashMap<>();
+    /** the dirty page table: LSN of the first logged change of each page not written since */
+    private final ConcurrentHashMap<PageId, Long> recLsn = new ConcurrentHashMap<>();
+    private final PageWriter writer = new PageWriter(this);
+    /** whether eviction may write pages of running transactions */
+    private volatile boolean steal = true;
+    private final AtomicLong steals = new AtomicLong();
+    private final ReadAhead readAhead = new ReadAhead(this);
+    /** reads issued by read-ahead that have not been cached yet */
+    private final ConcurrentHashMap<PageId, CompletableFuture<Page>> prefetching = new ConcurrentHashMap<>();
+    /** reads issued by a getPage that missed, not cached yet; other getPage calls for the page wait for them */
+    private final ConcurrentHashMap<PageId, CompletableFuture<Page>> faults = new ConcurrentHashMap<>();
+    /** finished read-ahead reads, cached by the next getPage */
+    private final Queue<Runnable> prefetchedReads = new ConcurrentLinkedQueue<>();
+    /** pages cached by read-ahead and not asked for since */
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * pages as chosen by the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy used to pick eviction victims.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         this.numPages = numPages;
-        lock = new Locksmith();
+        this.policy = policy;
+        lock = new LockManager();
     }
     
     public static int getPageSize() {
@@ -220,14 +98,87 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
     
-    public Locksmith getLock() {
+    public LockManager getLockManager() {
         return lock;
     }
 
+    /** @return the maximum number of pages this buffer pool caches */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the undo store of multi-version tables */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
+    }
+
+    /**
+     * Choose between STEAL, where eviction may write a page dirtied by a
+     * running transaction once its changes are logged and forced, and NO
+     * STEAL, where such pages stay in the pool until their transaction
+     * ends and a transaction cannot dirty more pages than the pool holds.
+     * Commits never write pages either way (NO FORCE). STEAL is the default.
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    public boolean isSteal() {
+        return steal;
+    }
+
+    /** @return the number of pages of running transactions evicted */
+    public long getStealCount() {
+        return steals.get();
+    }
+
+    /**
+     * Stop the pool's background I/O before its files are closed: the page
+     * writer, after the round it may be writing, and the reads read-ahead
+     * has in flight. Committed pages the writer has not written yet are
+     * left unwritten, as in a crash; recovery redoes them from the log.
+     */
+    public void shutdown() {
+        writer.stop();
+        for (CompletableFuture<Page> f : prefetching.values()) f.handle((p, e) -> p).join();
+    }
+
+    /** @return the background writer of committed pages */
+    public PageWriter getPageWriter() {
+        return writer;
+    }
+
+    /** @return the read-ahead of sequential heap file scans */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /** @return the number of getPage calls served from the pool */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Reset the hit, miss and steal counters, e.g. between benchmark runs. */
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        steals.set(0);
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * transaction; the transaction is aborted if the lock cannot be
+     * granted in time.
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -241,23 +192,211 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        Page p = null;
-        synchronized((Long)tid.getId()) {
-            p = pge.get(pid);
-            if (p == null) {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but if the page has to be read from disk, cache it in a frame recycled
+     * from the given strategy's ring rather than growing the scan's share of
+     * the pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy the access strategy of the calling scan, or null for
+     *                 normal caching
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        lock.acquireLock(tid, pid, perm);
+        return fetchPage(pid, strategy);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * unless that means waiting for another transaction's lock on it.
+     *
+     * @return the page, or null if another transaction holds or waits for
+     *         a conflicting lock on it
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (!lock.tryAcquireLock(tid, pid, perm)) return null;
+        return fetchPage(pid, null);
+    }
+
+    /**
+     * Retrieve the specified page without taking any lock. Only for readers
+     * that do not depend on page locks for isolation, i.e. snapshot reads of
+     * multi-version tables; they must latch the page (synchronize on it)
+     * while reading it.
+     *
+     * @param pid the ID of the requested page
+     * @param strategy the access strategy of the calling scan, or null for
+     *                 normal caching
+     * @see VersionStore#visibleTuples
+     */
+    public Page getPageUnlocked(PageId pid, BufferAccessStrategy strategy) throws DbException {
+        return fetchPage(pid, strategy);
+    }
+
+    /**
+     * Look pid up in the pool, or read it. The disk read runs outside the
+     * pool's monitor so that page faults proceed in parallel: the first
+     * getPage to miss publishes a future for the page in faults, reads it,
+     * and takes the monitor again only to cache it, while the others wait
+     * for the future without the monitor and then look again. A getPage for
+     * a page read-ahead is still reading waits for that read the same way.
+     */
+    private Page fetchPage(PageId pid, BufferAccessStrategy strategy) throws DbException {
+        boolean missed = false;
+        while (true) {
+            CompletableFuture<Page> read;
+            boolean mine = false;
+            synchronized (this) {
+                installPrefetched();
+                Page p = pge.get(pid);
+                if (p != null) {
+                    if (!missed) hits.incrementAndGet();
+                    policy.access(pid);
+                    if (prefetched.remove(pid)) readAhead.hit();
+                    // referenced outside the scan that read it: it now belongs to the shared pool
+                    if (strategy == null) ringPages.remove(pid);
+                    readAhead.access(pid, strategy);
+                    return p;
+                }
+                if (!missed) misses.incrementAndGet();
+                missed = true;
+                CompletableFuture<Page> ahead = prefetching.get(pid);
+                if (ahead != null && ahead.isDone()) {
+                    // read ahead but not installed yet: take it here
+                    prefetching.remove(pid, ahead);
+                    p = ahead.handle((pg, e) -> pg).join();
+                    if (p != null) {
+                        readAhead.hit();
+                        return cacheRead(p, strategy);
+                    }
+                    ahead = null;
+                }
+                read = ahead != null ? ahead : faults.get(pid);
+                if (read == null) {
+                    read = new CompletableFuture<>();
+                    faults.put(pid, read);
+                    mine = true;
+                }
+            }
+            if (!mine) {
+                read.handle((pg, e) -> pg).join();
+                continue;
+            }
+            Page p;
+            try {
                 p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                if (pge.size() == numPages) evictPage();
-                pge.put(pid, p);
-            }        
-            lock.acquireLock(tid, pid, perm);
+            } catch (RuntimeException e) {
+                faults.remove(pid, read);
+                read.completeExceptionally(e);
+                throw e;
+            }
+            synchronized (this) {
+                try {
+                    // unless updateCache put a newer version of pid in the pool meanwhile
+                    if (faults.remove(pid, read) && !pge.containsKey(pid)) return cacheRead(p, strategy);
+                } finally {
+                    read.complete(p);
+                }
+            }
         }
+    }
+
+    /** Cache a page a getPage had to read, evicting a page if the pool is full. */
+    private synchronized Page cacheRead(Page p, BufferAccessStrategy strategy) throws DbException {
+        if (pge.size() >= numPages) evictPage();
+        cache(p, strategy);
+        readAhead.access(p.getId(), strategy);
         return p;
     }
+
+    /** Put a page just read from disk into a free frame. */
+    private synchronized void cache(Page p, BufferAccessStrategy strategy) {
+        PageId pid = p.getId();
+        if (strategy != null) {
+            PageId reuse = strategy.add(pid);
+            if (reuse != null && ringPages.remove(reuse, strategy)) recycle(reuse);
+            ringPages.put(pid, strategy);
+        }
+        pge.put(pid, p);
+        policy.admit(pid);
+    }
+
+    /**
+     * Start reading pid into the pool on the given executor, unless it is
+     * cached or being read already.
+     *
+     * @return true if a read was started
+     */
+    synchronized boolean prefetch(PageId pid, BufferAccessStrategy strategy, Executor io) {
+        if (pge.containsKey(pid) || faults.containsKey(pid)) return false;
+        CompletableFuture<Page> f = new CompletableFuture<>();
+        if (prefetching.putIfAbsent(pid, f) != null) return false;
+        io.execute(() -> {
+            try {
+                f.complete(Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+            } catch (RuntimeException e) {
+                f.completeExceptionally(e);
+            }
+            // the I/O threads never take the monitor, which eviction may hold while writing
+            prefetchedReads.add(() -> installPrefetched(pid, f, strategy));
+        });
+        return true;
+    }
+
+    /** Cache the pages read ahead since the last call. */
+    private synchronized void installPrefetched() {
+        Runnable install;
+        while ((install = prefetchedReads.poll()) != null) install.run();
+    }
+
+    /**
+     * Cache a page read ahead, unless somebody took it meanwhile or no frame
+     * can be freed without writing a page.
+     */
+    private synchronized void installPrefetched(PageId pid, CompletableFuture<Page> f, BufferAccessStrategy strategy) {
+        if (!prefetching.remove(pid, f)) return;
+        Page p = f.getNow(null);
+        if (p == null || pge.containsKey(pid)) return;
+        if (pge.size() >= numPages) {
+            PageId victim = policy.evict(v -> {
+                Page pg = pge.get(v);
+                return pg == null || (pg.isDirty() == null && !recLsn.containsKey(v));
+            });
+            if (victim == null) {
+                readAhead.wasted();
+                return;
+            }
+            drop(victim);
+        }
+        cache(p, strategy);
+        prefetched.add(pid);
+    }
+
+    /** Forget a page that has left the pool. */
+    private void drop(PageId pid) {
+        pge.remove(pid);
+        ringPages.remove(pid);
+        if (prefetched.remove(pid)) readAhead.wasted();
+    }
     
-    private void updateCache(List<Page> pages) throws DbException {
+    private synchronized void updateCache(TransactionId tid, List<? extends Page> pages) throws DbException {
         for (Page p : pages) {
-            if (pge.size() == numPages) evictPage();
+            p.markDirty(true, tid);
+            dirtiedBy.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(p.getId());
+            if (!pge.containsKey(p.getId()) && pge.size() >= numPages) evictPage();
+            // a read of pid still in flight would be older than p
+            prefetching.remove(p.getId());
+            faults.remove(p.getId());
             pge.put(p.getId(), p);
+            policy.admit(p.getId());
         }
     }
     /**
@@ -284,6 +423,11 @@ public class BufferPool {
         } catch (Exception e) {}
     }
 
+    /** @return true if the page is in the pool; a hint, it may be evicted right after */
+    public boolean isCached(PageId pid) {
+        return pge.containsKey(pid);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId pid) {
         return lock.holdsLock(tid, pid);
@@ -297,10 +441,17 @@ public class BufferPool {
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
+        Set<HeapFile> loaded = bulkLoads.remove(tid);
         try {
-            if (commit) flushPages(tid, commit);
+            if (commit) commitPages(tid);
             else rollbackPages(tid);
+            if (loaded != null) for (HeapFile f : loaded) f.bulkLoadComplete(tid, commit);
         } catch (Exception e) {}
+        // versions are stamped or dropped only once the pages match the outcome
+        if (commit) versions.commit(tid);
+        else versions.abort(tid);
+        versions.endTransaction(tid);
+        dirtiedBy.remove(tid);
         lock.releaseLock(tid, null);
     }
 
@@ -321,7 +472,42 @@ public class BufferPool {
      */  
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        updateCache(Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t));
+        updateCache(tid, Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t));
+    }
+
+    /**
+     * Add many tuples to the specified table on behalf of transaction tid,
+     * taking an exclusive lock on the whole table. Heap files append them
+     * on packed pages written past the pool, and empty B+ trees are built
+     * bottom up, with minimal logging in both cases (see
+     * {@link HeapFile#bulkLoad} and {@link BTreeFile#bulkLoad}). Tuples
+     * for a B+ tree that is not empty are sorted and inserted one by one.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param ts the tuples to add
+     * @return the number of tuples added
+     */
+    public int bulkLoad(TransactionId tid, int tableId, Iterator<Tuple> ts)
+        throws DbException, IOException, TransactionAbortedException {
+        lock.acquireTableLock(tid, tableId, LockManager.LockMode.EXCLUSIVE);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (f instanceof HeapFile) {
+            bulkLoads.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add((HeapFile) f);
+            return ((HeapFile) f).bulkLoad(tid, ts);
+        }
+        List<Tuple> all = new ArrayList<>();
+        ts.forEachRemaining(all::add);
+        if (f instanceof BTreeFile) {
+            BTreeFile bf = (BTreeFile) f;
+            all.sort(new BTreeFileEncoder.TupleComparator(bf.keyField()));
+            if (bf.isEmpty(tid)) {
+                updateCache(tid, bf.bulkLoad(tid, all));
+                return all.size();
+            }
+        }
+        for (Tuple t : all) insertTuple(tid, tableId, t);
+        return all.size();
     }
 
     /**
@@ -339,20 +525,69 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        updateCache(Database.getCatalog().getDatabaseFile(
+        updateCache(tid, Database.getCatalog().getDatabaseFile(
         t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t));
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Remove a batch of tuples, possibly of several tables, like
+     * {@link #deleteTuple} would one by one. Heap files delete a table's
+     * tuples page by page, locking each page once, and delete all of them
+     * or none.
+     *
+     * @param tid the transaction deleting the tuples
+     * @param ts the tuples to delete
+     */
+    public void deleteTuples(TransactionId tid, List<Tuple> ts)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashMap<Integer, List<Tuple>> byTable = new LinkedHashMap<>();
+        for (Tuple t : ts)
+            byTable.computeIfAbsent(t.getRecordId().getPageId().getTableId(), k -> new ArrayList<>()).add(t);
+        for (Map.Entry<Integer, List<Tuple>> e : byTable.entrySet()) {
+            DbFile f = Database.getCatalog().getDatabaseFile(e.getKey());
+            if (f instanceof HeapFile) {
+                updateCache(tid, ((HeapFile) f).deleteTuples(tid, e.getValue()));
+            } else {
+                for (Tuple t : e.getValue()) updateCache(tid, f.deleteTuple(tid, t));
+            }
+        }
+    }
+
+    /**
+     * Replace tuple old by updated on behalf of transaction tid. A heap
+     * file rewrites old's slot in place; other files delete old and insert
+     * updated.
+     *
+     * @param tid the transaction updating the tuple
+     * @param old the tuple to replace, as read from its table
+     * @param updated its new value
+     */
+    public void updateTuple(TransactionId tid, Tuple old, Tuple updated)
+        throws DbException, IOException, TransactionAbortedException {
+        int tableId = old.getRecordId().getPageId().getTableId();
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (f instanceof HeapFile) {
+            updateCache(tid, ((HeapFile) f).updateTuple(tid, old, updated));
+        } else {
+            updateCache(tid, f.deleteTuple(tid, old));
+            updateCache(tid, f.insertTuple(tid, updated));
+        }
+    }
+
+    /**
+     * Flush all dirty pages to disk, including those of running
+     * transactions, whose changes are logged and forced first.
      */
     public synchronized void flushAllPages() throws IOException {
+        List<Page> dirty = new ArrayList<>(), unwritten = new ArrayList<>();
         for (Page p : pge.values()) {
-            if (p.isDirty() == null) continue;
-            flushPage(p.getId());
+            if (p.isDirty() != null) dirty.add(p);
+            else if (recLsn.containsKey(p.getId())) unwritten.add(p);
         }
+        logPages(dirty);
+        Database.getLogFile().force();
+        writePages(dirty);
+        writePages(unwritten);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -364,7 +599,21 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
-        pge.remove(pid);
+        drop(pid);
+        prefetching.remove(pid);
+        faults.remove(pid);
+        recLsn.remove(pid);
+        policy.remove(pid);
+    }
+
+    /**
+     * Drops a page whose ring slot is being reused by its access strategy,
+     * unless it has been dirtied in the meantime.
+     */
+    private synchronized void recycle(PageId pid) {
+        Page pg = pge.get(pid);
+        if (pg == null || pg.isDirty() != null || recLsn.containsKey(pid)) return;
+        discardPage(pid);
     }
 
     /**
@@ -375,40 +624,252 @@ public class BufferPool {
         if (pid == null) return;
         Page p = pge.get(pid);
         if (p.isDirty() != null){
-          Database.getLogFile().logWrite(p.isDirty(), p.getBeforeImage(), p);
+          List<Page> pages = Collections.singletonList(p);
+          logPages(pages);
           Database.getLogFile().force();
-          Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-          p.markDirty(false, null);
+          writePages(pages);
         }  
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid, boolean commit) throws IOException {
+    public void flushPages(TransactionId tid, boolean commit) throws IOException {
+        List<Page> dirty;
+        synchronized (this) {
+            dirty = dirtyPages(tid);
+            logPages(dirty);
+        }
+        // one force for all pages, outside the pool monitor so that
+        // concurrent commits can share it; tid's locks keep its pages stable
+        Database.getLogFile().force();
+        synchronized (this) {
+            writePages(dirty);
+        }
+    }
+
+    /**
+     * Commit tid's pages without writing them: log what tid changed since
+     * the pages were last logged, force the log through those records and
+     * leave the pages, now clean but in the dirty page table, to the page
+     * writer.
+     */
+    private void commitPages(TransactionId tid) throws IOException {
+        long last;
+        synchronized (this) {
+            List<Page> dirty = dirtyPages(tid);
+            last = logPages(dirty);
+            for (Page p : dirty) p.markDirty(false, null);
+        }
+        // usually nothing is left to log, the commit record forced it all
+        if (last != LogFile.NO_LSN) Database.getLogFile().forceTo(last);
+        writer.start();
+    }
+
+    /**
+     * Log the changes tid made to its dirty pages without forcing the log,
+     * so that tid's commit record, written next, makes them durable with it.
+     */
+    public synchronized void logDirtyPages(TransactionId tid) throws IOException {
+        logPages(dirtyPages(tid));
+    }
+
+    /** @return the cached pages tid has dirtied */
+    private synchronized List<Page> dirtyPages(TransactionId tid) {
+        List<Page> dirty = new ArrayList<>();
+        for (PageId pid : dirtiedBy.getOrDefault(tid, Collections.emptySet())) {
+            Page p = pge.get(pid);
+            if (p != null && tid.equals(p.isDirty())) dirty.add(p);
+        }
+        return dirty;
+    }
+
+    /**
+     * Log an update record for each page, without forcing the log. The
+     * logged image becomes the page's before image, so that the next record
+     * for the page only holds what changed since this one.
+     *
+     * @return the LSN of the last record logged, or LogFile.NO_LSN if none
+     */
+    private synchronized long logPages(List<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        long last = LogFile.NO_LSN;
+        for (Page p : pages) {
+            // under the log monitor, so that a checkpoint begun after the
+            // record finds the page in the dirty page table
+            synchronized (log) {
+                long lsn = log.logWrite(p.isDirty(), p.getBeforeImage(), p);
+                if (lsn != LogFile.NO_LSN) {
+                    p.setLSN(lsn);
+                    recLsn.putIfAbsent(p.getId(), lsn);
+                    last = lsn;
+                }
+            }
+            p.setBeforeImage();
+        }
+        return last;
+    }
+
+    /** Write logged pages to their files; the log must already be forced. */
+    private synchronized void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            p.markDirty(false, null);
+            if (recLsn.remove(p.getId()) != null) Database.getLogFile().logPageWritten(p.getId(), p.getLSN());
+        }
+    }
+
+    /**
+     * Write pid back if it holds committed changes that are not in its file
+     * yet, forcing the log up to its last change first.
+     *
+     * @return true if the page was written
+     */
+    boolean writeCommitted(PageId pid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            Page p = pge.get(pid);
+            if (p == null || p.isDirty() != null || !recLsn.containsKey(pid)) return false;
+            lsn = p.getLSN();
+        }
+        // outside the monitor; normally a no-op, the commit forced these records
+        Database.getLogFile().forceTo(lsn);
+        synchronized (this) {
+            Page p = pge.get(pid);
+            // skip it if it changed meanwhile; the next round gets it
+            if (p == null || p.isDirty() != null || !recLsn.containsKey(pid) || p.getLSN() != lsn) return false;
+            writePages(Collections.singletonList(p));
+            return true;
+        }
+    }
+
+    /** @return the cached committed pages not written since they changed, oldest change first */
+    synchronized List<PageId> unwrittenPages() {
+        List<Map.Entry<PageId, Long>> unwritten = new ArrayList<>();
+        for (Map.Entry<PageId, Long> e : recLsn.entrySet()) {
+            Page p = pge.get(e.getKey());
+            if (p != null && p.isDirty() == null) unwritten.add(e);
+        }
+        unwritten.sort(Map.Entry.comparingByValue());
+        List<PageId> res = new ArrayList<>();
+        for (Map.Entry<PageId, Long> e : unwritten) res.add(e.getKey());
+        return res;
+    }
+
+    /** @return true if some cached committed page is not written yet; does not take the monitor */
+    boolean hasUnwrittenPages() {
+        for (PageId pid : recLsn.keySet()) {
+            Page p = pge.get(pid);
+            if (p != null && p.isDirty() == null) return true;
+        }
+        return false;
+    }
+
+    /** @return the number of frames that are free or hold a page evictable without a write */
+    synchronized int cleanFrames() {
+        int n = numPages - pge.size();
         for (Page p : pge.values()) {
-            if (p.isDirty() != tid) continue;
-            flushPage(p.getId());
-            if (commit) p.setBeforeImage();
+            if (p.isDirty() == null && !recLsn.containsKey(p.getId())) ++n;
         }
+        return n;
     }
-    
+
+    /**
+     * @return a copy of the dirty page table: for each page with logged
+     *         changes not yet written to disk, the LSN of the first of them
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(recLsn);
+    }
+
+    /**
+     * @return pid's image as of its last logged change if it is cached, i.e.
+     *         without the unlogged changes of the transaction holding it, or
+     *         null if it is not cached
+     */
+    synchronized Page loggedImage(PageId pid) {
+        Page p = pge.get(pid);
+        if (p == null || p.isDirty() == null) return p;
+        Page logged = p.getBeforeImage();
+        logged.setLSN(p.getLSN());
+        return logged;
+    }
+
+    /**
+     * Put tid's dirty pages back to their last logged image. Discarding them
+     * instead would lose committed changes the page writer has not written
+     * yet.
+     */
     private synchronized void rollbackPages(TransactionId tid) throws IOException {
-        for (Page p : pge.values()) {
-            if (p.isDirty() != tid) continue;
-            discardPage(p.getId());
+        for (PageId pid : dirtiedBy.getOrDefault(tid, Collections.emptySet())) {
+            Page p = pge.get(pid);
+            if (p == null || !tid.equals(p.isDirty())) continue;
+            pge.put(pid, loggedImage(pid));
         }
     }
 
     /**
-     * Discards a clean page from the buffer pool.
+     * Discards a page chosen by the replacement policy from the buffer pool.
+     * Clean pages go first. Next come committed pages still to be written
+     * back, which are written first. Under STEAL, a page dirtied by a
+     * running transaction comes last: its changes are logged and the log
+     * forced before it is written.
      */
     private synchronized void evictPage() throws DbException {
-        for (Page pg : pge.values()) {
-            if (pg.isDirty() != null) continue;
-            discardPage(pg.getId());
-            return;
+        PageId victim = policy.evict(pid -> {
+            Page pg = pge.get(pid);
+            return pg == null || (pg.isDirty() == null && !recLsn.containsKey(pid));
+        });
+        if (victim == null) {
+            victim = policy.evict(pid -> {
+                Page pg = pge.get(pid);
+                return pg == null || pg.isDirty() == null;
+            });
+        }
+        if (victim == null && steal) victim = policy.evict(pid -> true);
+        if (victim == null) throw new DbException("all pages are dirty");
+        Page pg = pge.get(victim);
+        try {
+            if (pg != null && pg.isDirty() != null) {
+                stealPage(pg);
+            } else if (pg != null && recLsn.containsKey(victim)) {
+                Database.getLogFile().forceTo(pg.getLSN());
+                writePages(Collections.singletonList(pg));
+                writer.evictionWrite();
+            }
+        } catch (IOException e) {
+            policy.admit(victim);
+            throw new DbException("could not write back " + victim + ": " + e.getMessage());
+        }
+        drop(victim);
+    }
+
+    /**
+     * Write a page of a running transaction to disk so that it can be
+     * evicted. The snapshot that is logged and written is taken under the
+     * page's latch, which its owner holds while changing it, and becomes
+     * the page's before image like in logPages: the owner's next record
+     * for the page holds what changed since the stolen image, so that redo
+     * rebuilds the page from what is on disk.
+     */
+    private synchronized void stealPage(Page pg) throws IOException {
+        LogFile log = Database.getLogFile();
+        Page snapshot;
+        long lsn;
+        synchronized (pg) {
+            snapshot = PageDelta.newPage(pg.getId(), pg.getPageData());
+            synchronized (log) {
+                lsn = log.logWrite(pg.isDirty(), pg.getBeforeImage(), snapshot);
+                if (lsn == LogFile.NO_LSN) lsn = pg.getLSN();
+                else recLsn.putIfAbsent(pg.getId(), lsn);
+            }
+            pg.setLSN(lsn);
+            pg.setBeforeImage();
         }
-        throw new DbException("all pages are dirty");    
+        snapshot.setLSN(lsn);
+        // WAL: the undo information reaches the log before the page reaches its file
+        log.forceTo(lsn);
+        writePages(Collections.singletonList(snapshot));
+        steals.incrementAndGet();
     }
 
 }
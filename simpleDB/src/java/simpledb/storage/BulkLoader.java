@@ -0,0 +1,154 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BulkLoader loads a text file into a table of the catalog, in the format
+ * HeapFileEncoder converts: one tuple per line, fields separated by a
+ * separator character.
+ * <p>
+ * The file is read on the calling thread a block of lines at a time, and
+ * the blocks are parsed on a pool of parser threads, a few blocks ahead of
+ * the load, while the tuples are handed to
+ * {@link BufferPool#bulkLoad} in file order.
+ *
+ * @see HeapFileEncoder
+ */
+public class BulkLoader {
+
+    /** Number of lines parsed together. */
+    public static final int BLOCK_LINES = 4096;
+
+    private static final int PARSERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final ExecutorService parsers = Executors.newFixedThreadPool(PARSERS, r -> {
+        Thread t = new Thread(r, "bulk-load-parser");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Load the lines of a text file into a table on behalf of transaction
+     * tid. Nothing is visible to other transactions before tid commits.
+     *
+     * @param in the file to load
+     * @param fieldSeparator the character separating fields in a line
+     * @return the number of tuples loaded
+     * @throws IllegalArgumentException if a line does not match the table's tupledesc
+     */
+    public static int load(TransactionId tid, int tableId, File in, char fieldSeparator)
+            throws IOException, DbException, TransactionAbortedException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        try (BufferedReader br = new BufferedReader(new FileReader(in))) {
+            return Database.getBufferPool().bulkLoad(tid, tableId, parse(br, td, fieldSeparator));
+        }
+    }
+
+    /**
+     * @return the tuples of the lines br reads, skipping blank lines, in
+     *         order; blocks of lines are parsed ahead on the parser threads
+     */
+    public static Iterator<Tuple> parse(BufferedReader br, TupleDesc td, char fieldSeparator) {
+        return new Iterator<Tuple>() {
+            private final Deque<Future<List<Tuple>>> ahead = new ArrayDeque<>();
+            private Iterator<Tuple> block = Collections.emptyIterator();
+            private int lineNo = 0;
+            private boolean eof = false;
+
+            public boolean hasNext() {
+                while (!block.hasNext()) {
+                    fill();
+                    if (ahead.isEmpty()) return false;
+                    try {
+                        block = ahead.poll().get().iterator();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    } catch (ExecutionException e) {
+                        cancel();
+                        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+                return true;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return block.next();
+            }
+
+            /** read blocks until twice as many as there are parsers are in flight */
+            private void fill() {
+                try {
+                    while (!eof && ahead.size() < 2 * PARSERS) {
+                        List<String> lines = new ArrayList<>(BLOCK_LINES);
+                        int first = lineNo + 1;
+                        for (String line; lines.size() < BLOCK_LINES; ) {
+                            if ((line = br.readLine()) == null) {
+                                eof = true;
+                                break;
+                            }
+                            lines.add(line);
+                        }
+                        lineNo += lines.size();
+                        if (!lines.isEmpty()) ahead.add(parsers.submit(() -> parseLines(lines, first, td, fieldSeparator)));
+                    }
+                } catch (IOException e) {
+                    cancel();
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private void cancel() {
+                for (Future<List<Tuple>> f : ahead) f.cancel(true);
+                ahead.clear();
+                eof = true;
+            }
+        };
+    }
+
+    /** @return the tuples of lines, the first of which is line first of its file */
+    private static List<Tuple> parseLines(List<String> lines, int first, TupleDesc td, char fieldSeparator) {
+        List<Tuple> tuples = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); ++i) {
+            String line = lines.get(i);
+            if (line.trim().isEmpty()) continue;
+            try {
+                tuples.add(parseLine(line, td, fieldSeparator));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (first + i) + ": " + e.getMessage(), e);
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * @return the tuple of one line; strings are trimmed and cut off at
+     *         Type.STRING_LEN, as HeapFileEncoder does
+     */
+    static Tuple parseLine(String line, TupleDesc td, char fieldSeparator) {
+        Tuple t = new Tuple(td);
+        int start = 0;
+        for (int i = 0; i < td.numFields(); ++i) {
+            int end = line.indexOf(fieldSeparator, start);
+            if (end < 0) {
+                if (i < td.numFields() - 1) throw new IllegalArgumentException("expected " + td.numFields() + " fields");
+                end = line.length();
+            }
+            String s = line.substring(start, end).trim();
+            if (td.getFieldType(i) == Type.INT_TYPE) t.setField(i, new IntField(Integer.parseInt(s)));
+            else t.setField(i, new StringField(s, Type.STRING_LEN));
+            start = end + 1;
+        }
+        if (start <= line.length()) throw new IllegalArgumentException("expected " + td.numFields() + " fields");
+        return t;
+    }
+}
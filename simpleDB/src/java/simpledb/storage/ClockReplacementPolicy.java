@@ -0,0 +1,82 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular
+ * array of frames, each with a reference bit that is set on every access.
+ * The clock hand sweeps the frames, clearing reference bits, and evicts the
+ * first evictable page whose bit is already clear. Admission, access and
+ * removal are O(1); victim selection is amortized O(1).
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames = new ArrayList<>();
+    private final ArrayList<Boolean> referenced = new ArrayList<>();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<>();
+    private int hand = 0;
+
+    public ClockReplacementPolicy() {
+        this(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * @param numFrames the expected number of resident pages; the clock grows
+     *            beyond this if more pages are admitted
+     */
+    public ClockReplacementPolicy(int numFrames) {
+        frames.ensureCapacity(numFrames);
+        referenced.ensureCapacity(numFrames);
+    }
+
+    public synchronized void admit(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, true);
+            return;
+        }
+        if (freeFrames.isEmpty()) {
+            frame = frames.size();
+            frames.add(pid);
+            referenced.add(true);
+        } else {
+            frame = freeFrames.pop();
+            frames.set(frame, pid);
+            referenced.set(frame, true);
+        }
+        frameOf.put(pid, frame);
+    }
+
+    public synchronized void access(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) referenced.set(frame, true);
+    }
+
+    public synchronized void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null) return;
+        frames.set(frame, null);
+        referenced.set(frame, false);
+        freeFrames.push(frame);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        int n = frames.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < n << 1; ++i, hand = (hand + 1) % n) {
+            PageId pid = frames.get(hand);
+            if (pid == null) continue;
+            if (referenced.get(hand)) {
+                referenced.set(hand, false);
+                continue;
+            }
+            if (!evictable.test(pid)) continue;
+            remove(pid);
+            hand = (hand + 1) % n;
+            return pid;
+        }
+        return null;
+    }
+}
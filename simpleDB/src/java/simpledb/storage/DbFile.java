@@ -93,4 +93,11 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Release the files this DbFile keeps open; called when the catalog
+     * holding it is cleared. The DbFile may not be used afterwards.
+     */
+    default void close() throws IOException {
+    }
 }
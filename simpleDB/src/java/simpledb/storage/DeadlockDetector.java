@@ -0,0 +1,208 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DeadlockDetector finds cycles in the wait-for graph of a LockManager
+ * and breaks them by aborting one waiting transaction per cycle.
+ * <p>
+ * The LockManager keeps the graph up to date incrementally: whenever the
+ * queue of a page changes, it recomputes the outgoing edges of the
+ * transactions waiting on that page only. Only waiting transactions have
+ * outgoing edges, so the graph is as big as the number of blocked
+ * transactions, not the number of active ones.
+ * <p>
+ * Detection runs on a background daemon thread every interval
+ * milliseconds while anybody is waiting; the thread exits when the graph
+ * becomes empty and is restarted by the next wait. Lock acquisition and
+ * release never search the graph.
+ *
+ * @Threadsafe
+ */
+public class DeadlockDetector {
+
+    /** Which transaction of a cycle gets aborted. Ties go to the youngest. */
+    public enum VictimPolicy {
+        /** the transaction that started last */
+        YOUNGEST,
+        /** the transaction holding the fewest locks */
+        FEWEST_LOCKS,
+        /** the transaction holding the fewest exclusive locks, i.e. with the least to undo */
+        LEAST_WORK
+    }
+
+    /** Default time between detection passes, in milliseconds. */
+    public static final long DEFAULT_INTERVAL = 50;
+    /** Number of victims remembered by {@link #getRecentVictims()}. */
+    private static final int MAX_RECENT_VICTIMS = 100;
+
+    private final LockManager lockManager;
+    private final VictimPolicy victimPolicy;
+    private final long interval;
+
+    private final ConcurrentHashMap<TransactionId, Set<TransactionId>> waitsFor = new ConcurrentHashMap<>();
+    private Thread worker = null; // protected by this
+
+    private final AtomicLong runs = new AtomicLong(), deadlocks = new AtomicLong(), lastRunNanos = new AtomicLong();
+    private final ArrayDeque<Long> recentVictims = new ArrayDeque<>(); // protected by itself
+
+    public DeadlockDetector(LockManager lockManager, VictimPolicy victimPolicy, long interval) {
+        this.lockManager = lockManager;
+        this.victimPolicy = victimPolicy;
+        this.interval = interval;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /** Record that tid waits for every transaction in blockers, replacing its previous edges. */
+    void setWaitsFor(TransactionId tid, Set<TransactionId> blockers) {
+        waitsFor.put(tid, blockers);
+        ensureRunning();
+    }
+
+    /** Remove tid's outgoing edges once it stops waiting. */
+    void clear(TransactionId tid) {
+        waitsFor.remove(tid);
+    }
+
+    private synchronized void ensureRunning() {
+        if (worker != null) return;
+        worker = new Thread(this::run, "deadlock-detector");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                // fall through and check again
+            }
+            synchronized (this) {
+                if (waitsFor.isEmpty()) {
+                    worker = null;
+                    return;
+                }
+            }
+            detect();
+        }
+    }
+
+    /**
+     * Run one detection pass over a snapshot of the wait-for graph,
+     * aborting a victim for every cycle found.
+     *
+     * @return the number of deadlocks broken
+     */
+    public int detect() {
+        long start = System.nanoTime();
+        runs.incrementAndGet();
+        HashMap<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        for (Map.Entry<TransactionId, Set<TransactionId>> e : waitsFor.entrySet())
+            graph.put(e.getKey(), new HashSet<>(e.getValue()));
+
+        int found = 0;
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId victim = chooseVictim(cycle);
+            graph.remove(victim);
+            if (!lockManager.abortWaiter(victim)) continue; // stopped waiting in the meantime
+            ++found;
+            deadlocks.incrementAndGet();
+            synchronized (recentVictims) {
+                if (recentVictims.size() == MAX_RECENT_VICTIMS) recentVictims.removeFirst();
+                recentVictims.addLast(victim.getId());
+            }
+        }
+        lastRunNanos.set(System.nanoTime() - start);
+        return found;
+    }
+
+    /** @return the transactions on some cycle of graph, or null if it is acyclic */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        HashSet<TransactionId> done = new HashSet<>();
+        for (TransactionId root : graph.keySet()) {
+            if (done.contains(root)) continue;
+            // iterative DFS; path holds the current stack, onPath its members
+            ArrayList<TransactionId> path = new ArrayList<>();
+            ArrayList<Iterator<TransactionId>> its = new ArrayList<>();
+            HashSet<TransactionId> onPath = new HashSet<>();
+            path.add(root);
+            its.add(graph.get(root).iterator());
+            onPath.add(root);
+            while (!path.isEmpty()) {
+                Iterator<TransactionId> it = its.get(its.size() - 1);
+                if (!it.hasNext()) {
+                    TransactionId t = path.remove(path.size() - 1);
+                    its.remove(its.size() - 1);
+                    onPath.remove(t);
+                    done.add(t);
+                    continue;
+                }
+                TransactionId next = it.next();
+                if (onPath.contains(next))
+                    return new ArrayList<>(path.subList(path.indexOf(next), path.size()));
+                if (done.contains(next) || !graph.containsKey(next)) continue;
+                path.add(next);
+                its.add(graph.get(next).iterator());
+                onPath.add(next);
+            }
+        }
+        return null;
+    }
+
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        Comparator<TransactionId> youngest = Comparator.comparingLong(TransactionId::getId);
+        Comparator<TransactionId> cmp;
+        switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                cmp = Comparator.<TransactionId>comparingInt(t -> -lockManager.numLocksHeld(t)).thenComparing(youngest);
+                break;
+            case LEAST_WORK:
+                cmp = Comparator.<TransactionId>comparingInt(t -> -lockManager.numExclusiveLocksHeld(t)).thenComparing(youngest);
+                break;
+            default:
+                cmp = youngest;
+        }
+        return Collections.max(cycle, cmp);
+    }
+
+    /** @return the number of detection passes run */
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    /** @return the number of deadlocks broken */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /** @return the duration of the last detection pass, in nanoseconds */
+    public long getLastRunNanos() {
+        return lastRunNanos.get();
+    }
+
+    /** @return the ids of the most recently aborted victims, oldest first */
+    public List<Long> getRecentVictims() {
+        synchronized (recentVictims) {
+            return new ArrayList<>(recentVictims);
+        }
+    }
+
+    /** Reset all counters, e.g. between benchmark runs. */
+    public void resetStats() {
+        runs.set(0);
+        deadlocks.set(0);
+        lastRunNanos.set(0);
+        synchronized (recentVictims) {
+            recentVictims.clear();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package simpledb.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records how many empty slots each page of a HeapFile has,
+ * so that inserts go straight to a page with room instead of locking and
+ * reading every page before it.
+ * <p>
+ * The map keeps one byte per page, one more than the number of empty slots
+ * capped at {@link #MAX_FREE}, or zero for pages it has not seen yet (so
+ * that the gaps of a file written out of order read as unknown). It
+ * lives in memory and in a file next to the table's, named after it with
+ * ".fsm" appended. An entry is saved when its page is written to disk, and
+ * the file is not logged or forced, so after a crash it may be out of date.
+ * The map is only a hint: an insert checks the page it picked and corrects
+ * the entry if it was wrong, and pages the map has not seen count as
+ * possibly having room.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap implements Closeable {
+
+    /** entry of a page the map knows nothing about */
+    public static final int UNKNOWN = 255;
+    /** largest number of empty slots an entry records */
+    public static final int MAX_FREE = 254;
+
+    private final PageFile pf;
+    /** per page its entry plus one, or zero if unknown; protected by this */
+    private byte[] free;
+    /** no page before this one has room; protected by this */
+    private int lowest = 0;
+
+    /**
+     * Open the free space map of the heap file stored in f, reading the
+     * entries saved by earlier runs.
+     */
+    public FreeSpaceMap(File f) throws IOException {
+        pf = new PageFile(new File(f.getPath() + ".fsm"));
+        free = new byte[(int) pf.size()];
+        try {
+            pf.read(0, free);
+        } catch (EOFException e) {
+            free = new byte[0];
+        }
+    }
+
+    /** @return the entry of page pgno: its empty slots, capped at MAX_FREE, or UNKNOWN */
+    public synchronized int get(int pgno) {
+        int b = pgno < free.length ? free[pgno] & 0xff : 0;
+        return b == 0 ? UNKNOWN : b - 1;
+    }
+
+    /** Record that page pgno has emptySlots empty slots. */
+    public synchronized void set(int pgno, int emptySlots) {
+        if (pgno >= free.length) free = Arrays.copyOf(free, Math.max(pgno + 1, free.length * 2));
+        free[pgno] = (byte) (Math.min(emptySlots, MAX_FREE) + 1);
+        if (emptySlots > 0 && pgno < lowest) lowest = pgno;
+    }
+
+    /**
+     * Record that page pgno has emptySlots empty slots and save the entry;
+     * called when the page is written to disk.
+     */
+    public void save(int pgno, int emptySlots) throws IOException {
+        byte[] entry = new byte[1];
+        synchronized (this) {
+            set(pgno, emptySlots);
+            entry[0] = free[pgno];
+        }
+        pf.write(pgno, entry);
+    }
+
+    /**
+     * @return the first page from from on, and before numPages, that may
+     *         have room, or -1 if the map knows all of them to be full
+     */
+    public synchronized int find(int from, int numPages) {
+        if (from <= lowest) {
+            while (lowest < numPages && get(lowest) == 0) ++lowest;
+            from = lowest;
+        }
+        for (int pgno = from; pgno < numPages; ++pgno)
+            if (get(pgno) != 0) return pgno;
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pf.close();
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -20,6 +21,9 @@ import java.util.*;
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
+    /** number of pages {@link #bulkLoad} writes and logs at a time */
+    public static final int BULK_LOAD_BATCH = 64;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -31,13 +35,22 @@ public class HeapFile implements DbFile {
     private TupleDesc td;
     private BufferPool bp;
     private int cur = 0;
-    private RandomAccessFile rf;
+    private final PageFile pf;
+    private final FreeSpaceMap fsm;
+    /** serializes extending the file by a page */
+    private final Object extendLock = new Object();
+    private volatile boolean multiVersion = false;
+    /** empty slots of the pages each running bulk load wrote, by page number */
+    private final ConcurrentHashMap<TransactionId, Map<Integer, Integer>> bulkLoaded = new ConcurrentHashMap<>();
     public HeapFile(File f, TupleDesc td) {
         this.f = f;
         this.td = td;
         try {
-            rf = new RandomAccessFile(f, "rw");
-        } catch (IOException e) {}
+            pf = new PageFile(f);
+            fsm = new FreeSpaceMap(f);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -62,6 +75,53 @@ public class HeapFile implements DbFile {
         return f.getAbsoluteFile().hashCode();
     }
 
+    /**
+     * @return true if this file keeps old tuple versions for snapshot reads
+     */
+    public boolean isMultiVersion() {
+        return multiVersion;
+    }
+
+    /**
+     * Switch multi-version concurrency control on or off for this file.
+     * With it on, iterators read a transaction's snapshot through the
+     * {@link VersionStore} without taking page locks, while inserts and
+     * deletes record the tuples they overwrite. Should only be changed
+     * while no transaction is using the file.
+     */
+    public void setMultiVersion(boolean multiVersion) {
+        this.multiVersion = multiVersion;
+    }
+
+    /**
+     * @return true if pages are read through a memory mapping of the file
+     */
+    public boolean isMapped() {
+        return pf.isMapped();
+    }
+
+    /**
+     * Read pages through a memory mapping of the file rather than with
+     * positional reads; worth it for tables that are mostly read.
+     */
+    public void setMapped(boolean mapped) {
+        pf.setMapped(mapped);
+    }
+
+    /** @return the map of the pages with room for inserts */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return fsm;
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        try {
+            pf.close();
+        } finally {
+            fsm.close();
+        }
+    }
+
     /**
      * Returns the TupleDesc of the table stored in this DbFile.
      * 
@@ -75,95 +135,375 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         int pgno = pid.getPageNumber();
         if (pgno < 0) throw new IllegalArgumentException("invalid PID");
-        int sz = bp.getPageSize();
+        int sz = BufferPool.getPageSize();
         byte[] res = new byte[sz];
-        Page pg = null;
         try {
-            rf.seek(pgno * sz);
-            rf.read(res);
-            pg = new HeapPage((HeapPageId)pid, res);
-        } catch (Exception e) {}
-        return pg;
+            pf.read((long) pgno * sz, res);
+            HeapPage pg = new HeapPage((HeapPageId) pid, res);
+            // kept in memory only: reads never write, the entry is saved with the page
+            fsm.set(pgno, pg.getNumEmptySlots());
+            return pg;
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("page " + pgno + " is past the end of " + f);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        PageId pid = ((HeapPage) page).getId();
-        int pgno = pid.getPageNumber();
-        try {
-            rf.seek(pgno * bp.getPageSize());
-            rf.write(page.getPageData());
-        } catch (Exception e) {}
+        int pgno = page.getId().getPageNumber();
+        pf.write((long) pgno * BufferPool.getPageSize(), page.getPageData());
+        fsm.save(pgno, ((HeapPage) page).getNumEmptySlots());
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int)(f.length() / Database.getBufferPool().getPageSize());
+        try {
+            return (int) (pf.size() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * Inserts into the first page the free space map lists with room that
+     * no other transaction has locked, so full pages are not locked or
+     * read and concurrent inserts spread over the pages with room. If all
+     * of them are locked, the insert waits for the first; only if none has
+     * room is the file extended by a page.
+     */
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        HeapPage pg;
+        BufferPool bp = Database.getBufferPool();
         ArrayList<Page> inserted = new ArrayList<>();
-        synchronized((Integer)getId()) {
-            bp = Database.getBufferPool();
-            int n = numPages();
-            for (int i = 0; i < n; ++i) {
-                pg = (HeapPage) bp.getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
-                if (pg.getNumEmptySlots() > 0) {
-                    pg.insertTuple(t);
-                    pg.markDirty(true, tid);
-                    inserted.add(pg);
-                    return inserted;
-                }
+        int locked = -1;
+        for (int n = numPages(), pgno = fsm.find(0, n); pgno >= 0; pgno = fsm.find(pgno + 1, n)) {
+            HeapPage pg = (HeapPage) bp.tryGetPage(tid, new HeapPageId(getId(), pgno), Permissions.READ_WRITE);
+            if (pg == null) {
+                if (locked < 0) locked = pgno;
+            } else if (insertInto(tid, pg, t)) {
+                inserted.add(pg);
+                return inserted;
             }
-            pg = new HeapPage(new HeapPageId(getId(), n), new byte[bp.getPageSize()]);
-            pg.insertTuple(t);
-            pg.markDirty(true, tid);
-            writePage(pg);
         }
+        // scans hold their page locks to the end, so not waiting would grow
+        // the file by a page for every insert that runs alongside one
+        if (locked >= 0) {
+            HeapPage pg = (HeapPage) bp.getPage(tid, new HeapPageId(getId(), locked), Permissions.READ_WRITE);
+            if (insertInto(tid, pg, t)) {
+                inserted.add(pg);
+                return inserted;
+            }
+        }
+        // no room: extend the file with an empty page and fill it through
+        // the buffer pool, so it is logged and rolled back like any other
+        int n;
+        synchronized (extendLock) {
+            n = numPages();
+            // listed as full until the tuple is in, so other inserts don't queue for it
+            fsm.set(n, 0);
+            pf.write((long) n * BufferPool.getPageSize(), HeapPage.createEmptyPageData());
+        }
+        HeapPage pg = (HeapPage) bp.getPage(tid, new HeapPageId(getId(), n), Permissions.READ_WRITE);
+        if (!insertInto(tid, pg, t)) throw new DbException("no room on new page " + n);
+        inserted.add(pg);
         return inserted;
     }
 
+    /**
+     * Insert t into pg if it has room, and update the page's entry in the
+     * free space map either way.
+     *
+     * @return false if pg is full
+     */
+    private boolean insertInto(TransactionId tid, HeapPage pg, Tuple t)
+            throws DbException, TransactionAbortedException {
+        synchronized (pg) {
+            int slot = pg.getFirstEmptySlot();
+            if (slot < 0) {
+                fsm.set(pg.getId().getPageNumber(), 0);
+                return false;
+            }
+            if (multiVersion) Database.getBufferPool().getVersionStore().recordChange(tid, pg, slot, false);
+            pg.insertTuple(t);
+            fsm.set(pg.getId().getPageNumber(), pg.getNumEmptySlots());
+        }
+        pg.markDirty(true, tid);
+        return true;
+    }
+
+    /**
+     * Appends tuples to the end of this file on fully packed pages written
+     * straight to disk, bypassing the buffer pool and the search for free
+     * space. The caller must hold an exclusive lock on the table.
+     * <p>
+     * Only page headers are logged. The pages of each batch of
+     * {@link #BULK_LOAD_BATCH} are first written with their headers
+     * cleared, which makes their tuples invisible. Next, a record is logged
+     * per page that sets the header, the log is forced, and the pages are
+     * written whole. Undo clears the headers again, and the file is forced
+     * before this returns, so a commit covers the loaded pages without
+     * redoing them. The free space map learns of the pages when tid
+     * commits, see {@link #bulkLoadComplete}.
+     *
+     * @return the number of tuples loaded
+     * @throws DbException if this file keeps old versions, whose snapshot
+     *         readers would see the tuples before they commit
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples) throws DbException, IOException {
+        if (multiVersion) throw new DbException("cannot bulk load a multi-version table");
+        LogFile log = Database.getLogFile();
+        int sz = BufferPool.getPageSize();
+        int loaded = 0;
+        int pgno = numPages();
+        List<HeapPage> batch = new ArrayList<>();
+        while (tuples.hasNext()) {
+            HeapPage pg = new HeapPage(new HeapPageId(getId(), pgno++), HeapPage.createEmptyPageData());
+            for (int i = 0; i < pg.getNumSlots() && tuples.hasNext(); ++i) {
+                pg.insertTuple(tuples.next());
+                ++loaded;
+            }
+            batch.add(pg);
+            if (batch.size() == BULK_LOAD_BATCH || !tuples.hasNext()) {
+                long[] lsns = new long[batch.size()];
+                long last = LogFile.NO_LSN;
+                for (int i = 0; i < batch.size(); ++i) {
+                    HeapPage p = batch.get(i);
+                    byte[] hidden = p.getHiddenPageData();
+                    pf.write((long) p.getId().getPageNumber() * sz, hidden);
+                    last = lsns[i] = log.logWrite(tid, new HeapPage(p.getId(), hidden), p);
+                }
+                log.forceTo(last);
+                for (HeapPage p : batch) pf.write((long) p.getId().getPageNumber() * sz, p.getPageData());
+                pf.force();
+                for (int i = 0; i < batch.size(); ++i) {
+                    HeapPage p = batch.get(i);
+                    log.logPageWritten(p.getId(), lsns[i]);
+                    bulkLoaded.computeIfAbsent(tid, k -> new HashMap<>())
+                            .put(p.getId().getPageNumber(), p.getNumEmptySlots());
+                }
+                batch.clear();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Save the free space map entries of the pages tid bulk loaded, if it
+     * committed. An abort forgets them: rolling back writes the pages
+     * again, which saves their entries then.
+     */
+    void bulkLoadComplete(TransactionId tid, boolean commit) throws IOException {
+        Map<Integer, Integer> free = bulkLoaded.remove(tid);
+        if (free == null || !commit) return;
+        for (Map.Entry<Integer, Integer> e : free.entrySet()) fsm.save(e.getKey(), e.getValue());
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        HeapPage pg;
+        return deleteTuples(tid, Collections.singletonList(t));
+    }
+
+    /**
+     * Deletes a batch of tuples. Each tuple is found through its record id,
+     * and the tuples are grouped by page, so every page is locked and
+     * changed once however many of its tuples go.
+     * <p>
+     * Either all tuples are deleted or none: if one of them is not in this
+     * file, nothing is changed.
+     *
+     * @return the pages that were modified
+     * @throws DbException if one of the tuples is not in this file
+     */
+    public ArrayList<Page> deleteTuples(TransactionId tid, List<Tuple> ts) throws DbException,
+            TransactionAbortedException {
+        TreeMap<Integer, List<Tuple>> byPage = new TreeMap<>();
+        int n = numPages();
+        for (Tuple t : ts) {
+            PageId pid = t.getRecordId() == null ? null : t.getRecordId().getPageId();
+            if (pid == null || pid.getTableId() != getId() || pid.getPageNumber() >= n)
+                throw new DbException("tuple is not in this file");
+            byPage.computeIfAbsent(pid.getPageNumber(), k -> new ArrayList<>()).add(t);
+        }
+        BufferPool bp = Database.getBufferPool();
+        ArrayList<HeapPage> pages = new ArrayList<>();
+        for (Map.Entry<Integer, List<Tuple>> e : byPage.entrySet()) {
+            HeapPage pg = (HeapPage) bp.getPage(tid, new HeapPageId(getId(), e.getKey()), Permissions.READ_WRITE);
+            HashSet<Integer> slots = new HashSet<>();
+            synchronized (pg) {
+                for (Tuple t : e.getValue()) {
+                    int slot = t.getRecordId().getTupleNumber();
+                    if (slot < 0 || slot >= pg.getNumSlots()) throw new DbException("tuple is not in this file");
+                    // a tuple gone because of a newer committed change is a conflict, not a bad batch
+                    if (multiVersion) bp.getVersionStore().checkOverwrite(tid, pg, slot);
+                    if (!pg.contains(t) || !slots.add(slot)) throw new DbException("tuple is not in this file");
+                }
+            }
+            pages.add(pg);
+        }
+        // only once the whole batch is known to be in the file, since a
+        // version recorded for a slot that is not deleted would make other
+        // writers of the slot conflict until tid ends; the chain is per
+        // slot, and a conflicting change aborts before anything is deleted
+        if (multiVersion) {
+            for (HeapPage pg : pages) {
+                synchronized (pg) {
+                    for (Tuple t : byPage.get(pg.getId().getPageNumber()))
+                        bp.getVersionStore().recordChange(tid, pg, t.getRecordId().getTupleNumber(), true);
+                }
+            }
+        }
         ArrayList<Page> deleted = new ArrayList<>();
-        synchronized((Integer)getId()) {
-            bp = Database.getBufferPool();
-            for (int i = 0, n = numPages(); i < n; ++i) {
-                pg = (HeapPage) bp.getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
-                try {
-                    pg.deleteTuple(t);
-                    pg.markDirty(true, tid);
-                    deleted.add(pg);
-                } catch (Exception e) {}
+        for (HeapPage pg : pages) {
+            List<Tuple> onPage = byPage.get(pg.getId().getPageNumber());
+            synchronized (pg) {
+                for (Tuple t : onPage) pg.deleteTuple(t);
+                fsm.set(pg.getId().getPageNumber(), pg.getNumEmptySlots());
             }
+            pg.markDirty(true, tid);
+            deleted.add(pg);
         }
         return deleted;
     }
 
+    /**
+     * Replaces a tuple by another in its slot, rather than deleting it and
+     * inserting the new one elsewhere. updated takes over old's record id.
+     *
+     * @return the page that was modified
+     * @throws DbException if old is not in this file or updated does not
+     *         fit this file's tupledesc
+     */
+    public List<Page> updateTuple(TransactionId tid, Tuple old, Tuple updated) throws DbException,
+            TransactionAbortedException {
+        PageId pid = old.getRecordId() == null ? null : old.getRecordId().getPageId();
+        if (pid == null || pid.getTableId() != getId() || pid.getPageNumber() >= numPages())
+            throw new DbException("tuple is not in this file");
+        BufferPool bp = Database.getBufferPool();
+        HeapPage pg = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        synchronized (pg) {
+            int slot = old.getRecordId().getTupleNumber();
+            if (slot < 0 || slot >= pg.getNumSlots()) throw new DbException("tuple is not in this file");
+            if (multiVersion) bp.getVersionStore().recordChange(tid, pg, slot, true);
+            if (!pg.contains(old)) throw new DbException("tuple is not in this file");
+            pg.updateTuple(old, updated);
+        }
+        pg.markDirty(true, tid);
+        return Collections.singletonList(pg);
+    }
+
+    /**
+     * Reads the tuples of this file a batch at a time, locking and caching
+     * pages like {@link #iterator(TransactionId)} but copying the fields
+     * straight from each page's bytes into the batch's columns. Multi-version
+     * files, whose visibility is decided per tuple, go through their
+     * iterator instead.
+     */
+    public class BatchReader {
+        private final TransactionId tid;
+        private DbFileIterator tuples;
+        private final BufferAccessStrategy strat;
+        private HeapPage page;
+        private int pgno, slot;
+
+        private BatchReader(TransactionId tid) {
+            this.tid = tid;
+            strat = BufferAccessStrategy.forScan(numPages());
+            rewind();
+        }
+
+        /** Start again from the first page. */
+        public void rewind() {
+            pgno = 0;
+            slot = 0;
+            page = null;
+            if (tuples != null) tuples.close();
+            tuples = null;
+        }
+
+        /**
+         * Fill b, cleared first, with the next tuples of the file.
+         *
+         * @return false if there were none left
+         */
+        public boolean next(Batch b) throws DbException, TransactionAbortedException {
+            b.clear();
+            if (multiVersion) {
+                if (tuples == null) {
+                    tuples = iterator(tid, strat);
+                    tuples.open();
+                }
+                while (!b.isFull() && tuples.hasNext()) b.addTuple(tuples.next());
+                return b.getNumRows() > 0;
+            }
+            while (!b.isFull()) {
+                if (page == null) {
+                    if (pgno >= numPages()) break;
+                    page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pgno++),
+                            Permissions.READ_WRITE, strat);
+                    slot = 0;
+                }
+                slot = page.readInto(b, slot);
+                if (slot == page.getNumSlots()) page = null;
+            }
+            return b.getNumRows() > 0;
+        }
+
+        public void close() {
+            if (tuples != null) tuples.close();
+            tuples = null;
+            page = null;
+        }
+    }
+
+    /** @return a reader of this file's tuples a batch at a time on behalf of tid */
+    public BatchReader batchReader(TransactionId tid) {
+        return new BatchReader(tid);
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile that
+     * reads pages through the given buffer access strategy.
+     *
+     * @param strategy the strategy to read pages with; if null, a bulk-read
+     *                 ring is used when the file is large relative to the
+     *                 buffer pool
+     * @see BufferAccessStrategy#forScan
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy) {
         return new AbstractDbFileIterator() {
+            private BufferAccessStrategy strat;
             public void open() throws DbException, TransactionAbortedException {
                 opened = true;
                 closed = false;
                 pos = 0;
-                iter = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pos++),        
-                Permissions.READ_WRITE)).iterator();
+                // one strategy for the life of the scan, so that rewinding
+                // keeps recycling the same ring instead of leaving it behind
+                if (strat == null) strat = strategy != null ? strategy : BufferAccessStrategy.forScan(numPages());
+                iter = pageIterator(pos++);
+            }
+            private Iterator<Tuple> pageIterator(int pgno) throws DbException, TransactionAbortedException {
+                BufferPool bp = Database.getBufferPool();
+                HeapPageId pid = new HeapPageId(getId(), pgno);
+                if (multiVersion)
+                    return bp.getVersionStore().visibleTuples(tid, (HeapPage) bp.getPageUnlocked(pid, strat)).iterator();
+                return ((HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE, strat)).iterator();
             }
             @Override
             protected Tuple readNext() throws DbException, TransactionAbortedException {
                 if (iter != null && iter.hasNext()) return iter.next();
                 int n = numPages();
                 while (pos < n) {
-                    iter = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pos++),        
-                    Permissions.READ_WRITE)).iterator();
+                    iter = pageIterator(pos++);
                     if (iter.hasNext()) return iter.next();
                 }
                 return null;
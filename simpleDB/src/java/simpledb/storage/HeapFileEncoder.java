@@ -4,8 +4,15 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -69,11 +76,10 @@ public class HeapFileEncoder {
   }
 
    /** Convert the specified input text file into a binary
-    * page file. <br>
-    * Assume format of the input file is (note that only integer fields are
-    * supported):<br>
-    * int,...,int\n<br>
-    * int,...,int\n<br>
+    * page file, parsing it on as many threads as there are processors. <br>
+    * Assume format of the input file is:<br>
+    * field,...,field\n<br>
+    * field,...,field\n<br>
     * ...<br>
     * where each row represents a tuple.<br>
     * <p>
@@ -82,146 +88,265 @@ public class HeapFileEncoder {
     *
     * @see HeapPage
     * @see HeapFile
+    * @see #convertParallel
     * @param inFile The input file to read data from
     * @param outFile The output file to write data to
     * @param npagebytes The number of bytes per page in the output file
     * @param numFields the number of fields in each input line/output tuple
-    * @throws IOException if the input/output file can't be opened or a
-    *   malformed input line is encountered
+    * @throws IOException if the input/output file can't be opened
     */
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convertParallel(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Bytes of input parsed as one chunk. */
+  public static final int CHUNK_BYTES = 4 << 20;
+
+  /** What a conversion did and how fast. */
+  public static class ConvertStats {
+      private final long rows, bytes, pages, nanos;
+
+      ConvertStats(long rows, long bytes, long pages, long nanos) {
+          this.rows = rows;
+          this.bytes = bytes;
+          this.pages = pages;
+          this.nanos = nanos;
+      }
+
+      /** @return the number of tuples written */
+      public long getRows() {
+          return rows;
+      }
+
+      /** @return the size of the input file in bytes */
+      public long getBytes() {
+          return bytes;
+      }
+
+      /** @return the number of pages written */
+      public long getPages() {
+          return pages;
+      }
+
+      public double getSeconds() {
+          return nanos / 1e9;
+      }
 
+      public double getRowsPerSecond() {
+          return rows / Math.max(getSeconds(), 1e-9);
+      }
+
+      /** @return input megabytes read per second */
+      public double getMBPerSecond() {
+          return bytes / (1024.0 * 1024.0) / Math.max(getSeconds(), 1e-9);
+      }
+
+      @Override
+      public String toString() {
+          return String.format("%d rows, %d pages in %.2f s: %.0f rows/s, %.1f MB/s",
+                  rows, pages, getSeconds(), getRowsPerSecond(), getMBPerSecond());
+      }
+  }
+
+  /** Convert the specified input text file into a binary page file like
+   * {@link #convert(File, File, int, int, Type[], char)}, on the given
+   * number of parser threads.
+   * <p>
+   * The input is split into chunks of about {@link #CHUNK_BYTES} that end
+   * at line ends. Each chunk is parsed by a worker into the binary form of
+   * its tuples, a few chunks ahead of the calling thread, which packs the
+   * tuples of the chunks in order into pages and writes them out through
+   * a FileChannel. Carriage returns and blank lines are ignored, strings
+   * are trimmed and cut off at Type.STRING_LEN, and lines that do not
+   * parse are reported on standard output and skipped. An empty input
+   * gives one empty page.
+   *
+   * @param threads the number of parser threads
+   * @return the number of rows and pages written, and how fast
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static ConvertStats convertParallel(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, int threads)
+      throws IOException {
+      long start = System.nanoTime();
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
       }
       int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char[] buf = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    s  = s.substring(0,Type.STRING_LEN);
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+      // one header bit per record, rounded up to whole bytes
+      int nheaderbytes = (nrecords + 7) / 8;
+      // the free space map of whatever table was stored there before
+      new File(outFile.getPath() + ".fsm").delete();
+
+      ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+          Thread t = new Thread(r, "heap-file-encoder");
+          t.setDaemon(true);
+          return t;
+      });
+      try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE,
+                   StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+          long size = in.size();
+          int recbytes = nrecbytes;
+          Deque<Future<ByteBuffer>> ahead = new ArrayDeque<>();
+          byte[] page = new byte[npagebytes];
+          int slot = 0;
+          long rows = 0, npages = 0;
+          long from = 0;
+          while (from < size || !ahead.isEmpty()) {
+              // keep two chunks per worker in flight
+              while (from < size && ahead.size() < 2 * threads) {
+                  long begin = from, end = lineEnd(in, Math.min(from + CHUNK_BYTES, size), size);
+                  ahead.add(workers.submit(() -> parseChunk(in, begin, end, recbytes, numFields, typeAr, fieldSeparator)));
+                  from = end;
+              }
+              ByteBuffer recs = get(ahead.poll());
+              ByteBuffer pages = ByteBuffer.allocate((recs.remaining() / recbytes / nrecords + 1) * npagebytes);
+              while (recs.hasRemaining()) {
+                  recs.get(page, nheaderbytes + slot * recbytes, recbytes);
+                  page[slot / 8] |= (byte) (1 << (slot % 8));
+                  rows++;
+                  if (++slot == nrecords) {
+                      pages.put(page);
+                      npages++;
+                      Arrays.fill(page, (byte) 0);
+                      slot = 0;
+                  }
+              }
+              writeFully(out, (ByteBuffer) pages.flip());
+          }
+          if (slot > 0 || npages == 0) {
+              writeFully(out, ByteBuffer.wrap(page));
+              npages++;
+          }
+          return new ConvertStats(rows, size, npages, System.nanoTime() - start);
+      } finally {
+          workers.shutdownNow();
+      }
+  }
+
+  /** @return the offset just past the first line end at or after pos, or size */
+  private static long lineEnd(FileChannel in, long pos, long size) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(4096);
+      // pos is just past a line end if the byte before it is one
+      for (long at = pos - 1; at < size; at += buf.limit()) {
+          buf.clear();
+          if (in.read(buf, at) <= 0) break;
+          buf.flip();
+          for (int i = 0; i < buf.limit(); i++)
+              if (buf.get(i) == '\n') return at + i + 1;
+      }
+      return size;
+  }
+
+  /** @return the records of the lines in the given range of in, one after the other */
+  private static ByteBuffer parseChunk(FileChannel in, long begin, long end, int nrecbytes,
+                 int numFields, Type[] typeAr, char fieldSeparator) throws IOException {
+      ByteBuffer raw = ByteBuffer.allocate((int) (end - begin));
+      while (raw.hasRemaining())
+          if (in.read(raw, begin + raw.position()) < 0) throw new EOFException("read past end of input");
+      // carriage returns are ignored wherever they are
+      String text = new String(raw.array(), Charset.defaultCharset()).replace("\r", "");
+      // at most one record per line that is not blank, and no more than the
+      // shortest possible lines fit in the chunk: the separators and the
+      // newline, plus a digit per int field
+      int minLine = numFields;
+      for (int i = 0; i < numFields; i++)
+          if (typeAr[i] == Type.INT_TYPE) minLine++;
+      int lines = 0;
+      for (int i = 0, lineStart = 0; i <= text.length(); i++) {
+          if (i < text.length() && text.charAt(i) != '\n') continue;
+          if (i > lineStart) lines++;
+          lineStart = i + 1;
+      }
+      ByteBuffer recs = ByteBuffer.allocate(Math.min(lines, text.length() / minLine + 1) * nrecbytes);
+      int[] bounds = new int[numFields + 1];
+      for (int pos = 0; pos < text.length(); ) {
+          int nl = text.indexOf('\n', pos);
+          if (nl < 0) nl = text.length();
+          int lineStart = pos;
+          pos = nl + 1;
+          if (nl == lineStart) continue;
+          int mark = recs.position();
+          try {
+              split(text, lineStart, nl, fieldSeparator, bounds);
+              for (int i = 0; i < numFields; i++) {
+                  int from = bounds[i], to = bounds[i + 1] - 1;
+                  // trim
+                  while (from < to && text.charAt(from) <= ' ') from++;
+                  while (to > from && text.charAt(to - 1) <= ' ') to--;
+                  if (typeAr[i] == Type.INT_TYPE) {
+                      recs.putInt(parseInt(text, from, to));
+                  } else if (typeAr[i] == Type.STRING_TYPE) {
+                      int len = Math.min(to - from, Type.STRING_LEN);
+                      recs.putInt(len);
+                      // one byte per char, as DataOutputStream.writeBytes
+                      for (int j = 0; j < len; j++) recs.put((byte) text.charAt(from + j));
+                      recs.position(recs.position() + Type.STRING_LEN - len);
+                  }
+              }
+          } catch (NumberFormatException e) {
+              System.out.println("BAD LINE : " + text.substring(lineStart, nl));
+              Arrays.fill(recs.array(), mark, recs.position(), (byte) 0);
+              recs.position(mark);
+          }
+      }
+      recs.flip();
+      return recs;
+  }
+
+  /**
+   * Find the fields of the line text[from, to): field i is
+   * text[bounds[i], bounds[i + 1] - 1).
+   *
+   * @throws NumberFormatException if the line does not have bounds.length - 1 fields
+   */
+  private static void split(String text, int from, int to, char fieldSeparator, int[] bounds) {
+      int n = bounds.length - 1;
+      bounds[0] = from;
+      for (int i = 1; i < n; i++) {
+          int sep = text.indexOf(fieldSeparator, bounds[i - 1]);
+          if (sep < 0 || sep >= to) throw new NumberFormatException("expected " + n + " fields");
+          bounds[i] = sep + 1;
+      }
+      int sep = text.indexOf(fieldSeparator, bounds[n - 1]);
+      if (sep >= 0 && sep < to) throw new NumberFormatException("expected " + n + " fields");
+      bounds[n] = to + 1;
+  }
+
+  /** @return the int in text[from, to), parsed without copying it if it is plain decimal */
+  private static int parseInt(String text, int from, int to) {
+      int i = from;
+      boolean negative = i < to && text.charAt(i) == '-';
+      if (negative) i++;
+      // nine digits cannot overflow
+      if (i == to || to - i > 9) return Integer.parseInt(text.substring(from, to));
+      int v = 0;
+      for (; i < to; i++) {
+          char c = text.charAt(i);
+          if (c < '0' || c > '9') return Integer.parseInt(text.substring(from, to));
+          v = v * 10 + (c - '0');
+      }
+      return negative ? -v : v;
+  }
+
+  private static ByteBuffer get(Future<ByteBuffer> f) throws IOException {
+      try {
+          return f.get();
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+          throw new RuntimeException(e.getCause());
+      }
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) out.write(buf);
   }
 }
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
@@ -12,6 +13,19 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the page's bytes as read from disk and works on them
+ * directly: the header bits are tested and set in place, fields can be
+ * read straight out of a slot ({@link #getInt}, {@link #getString}), and
+ * inserts and deletes rewrite just their slot. A slot's Tuple is only
+ * built when somebody asks for it, and then kept, so reading a page
+ * allocates nothing per tuple, and getPageData is a plain copy.
+ * <p>
+ * The before image is copy on write: until the page is first changed after
+ * {@link #setBeforeImage}, the page and its before image share one array,
+ * and the first change copies it. Pages that are only read never copy
+ * their bytes, and a before image shares the saved array until it is
+ * changed itself.
  *
  * @see HeapFile
  * @see BufferPool
@@ -21,13 +35,22 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
+    /** the page's bytes: the header, then the slots, then padding */
+    private byte[] data;
+    /** whether data is also the before image, so it must be copied before a change */
+    private boolean shared;
+    /** the tuples built so far, by slot; null where not built or empty */
     final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
+    /** offset of each field within a slot */
+    private final int[] fieldOffsets;
     private boolean dirty;
     private TransactionId tid = null;
+    private volatile long lsn = -1;
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
+    private static volatile boolean copyOnWrite = true;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -41,6 +64,9 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page takes ownership of data; callers must not change the array
+     * afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -49,21 +75,14 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        this.headerSize = getHeaderSize();
+        if (data.length < headerSize + numSlots * td.getSize())
+            throw new IOException("page data too short for " + numSlots + " slots");
+        this.data = data;
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
 
         setBeforeImage();
     }
@@ -92,7 +111,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid, copyOnWrite ? oldDataRef : oldDataRef.clone());
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -102,7 +121,31 @@ public class HeapPage implements Page {
     
     public void setBeforeImage() {
         synchronized(oldDataLock) {
-        oldData = getPageData().clone();
+        oldData = copyOnWrite ? data : data.clone();
+        shared = copyOnWrite;
+        }
+    }
+
+    /**
+     * Turn copy on write before images on or off for all heap pages. With
+     * it off, setBeforeImage and getBeforeImage copy the page's bytes
+     * every time; meant for measuring what copy on write saves.
+     */
+    public static void setCopyOnWrite(boolean copyOnWrite) {
+        HeapPage.copyOnWrite = copyOnWrite;
+    }
+
+    public static boolean isCopyOnWrite() {
+        return copyOnWrite;
+    }
+
+    /** Copy the page's bytes if they are shared with the before image; call before every change. */
+    private void ensureOwnData() {
+        synchronized(oldDataLock) {
+            if (shared) {
+                data = data.clone();
+                shared = false;
+            }
         }
     }
 
@@ -113,40 +156,94 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the offset of field j of slot i within the page */
+    private int offset(int i, int j) {
+        return headerSize + i * td.getSize() + fieldOffsets[j];
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * @return the value of integer field j of the tuple in slot i, read
+     *         from the page without building the tuple
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    public int getInt(int i, int j) {
+        int off = offset(i, j);
+        return (data[off] << 24) | ((data[off + 1] & 0xff) << 16) | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    /**
+     * @return the value of string field j of the tuple in slot i, read
+     *         from the page without building the tuple
+     */
+    public String getString(int i, int j) {
+        int off = offset(i, j);
+        int len = getInt(i, j);
+        return new String(data, off + 4, Math.max(0, Math.min(len, Type.STRING_LEN)));
+    }
+
+    /** @return field j of the tuple in slot i, read from the page */
+    public Field getField(int i, int j) {
+        switch (td.getFieldType(j)) {
+            case INT_TYPE:
+                return new IntField(getInt(i, j));
+            case STRING_TYPE:
+                return new StringField(getString(i, j), Type.STRING_LEN);
+            default:
+                throw new IllegalArgumentException("unknown type " + td.getFieldType(j));
         }
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Copy the tuples in the used slots from slot on into new rows of b,
+     * straight from the page's bytes, until b is full.
+     *
+     * @return the slot to continue from, or getNumSlots() if all were read
+     */
+    public int readInto(Batch b, int slot) {
+        int n = b.getNumRows(), cap = b.capacity(), nf = td.numFields();
+        for (; slot < numSlots && n < cap; slot++) {
+            if (!isSlotUsed(slot)) continue;
+            for (int j = 0; j < nf; j++) {
+                if (td.getFieldType(j) == Type.INT_TYPE) b.getInts(j)[n] = getInt(slot, j);
+                else b.getStrings(j)[n] = getString(slot, j);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            n++;
         }
+        b.setNumRows(n);
+        return slot;
+    }
 
+    /** Build the tuple in used slot i from the page's bytes. */
+    private Tuple readTuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        for (int j = 0; j < td.numFields(); j++)
+            t.setField(j, getField(i, j));
         return t;
     }
 
+    /** Write t's fields over slot i, or zeroes if t is null. */
+    private void writeSlot(int i, Tuple t) {
+        int off = offset(i, 0), size = td.getSize();
+        ensureOwnData();
+        if (t == null) {
+            Arrays.fill(data, off, off + size, (byte) 0);
+            return;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] bytes = baos.toByteArray();
+        int n = Math.min(bytes.length, size);
+        System.arraycopy(bytes, 0, data, off, n);
+        Arrays.fill(data, off + n, off + size, (byte) 0);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -159,63 +256,17 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return data.clone();
+    }
 
-        return baos.toByteArray();
+    /**
+     * @return the bytes of this page with every slot marked empty, though
+     *         the tuples are left in place; see HeapFile#bulkLoad
+     */
+    byte[] getHiddenPageData() {
+        byte[] hidden = data.clone();
+        Arrays.fill(hidden, 0, headerSize, (byte) 0);
+        return hidden;
     }
 
     /**
@@ -240,15 +291,40 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        RecordId tmp = t.getRecordId(), cur;
-        for (int i = 0; i < tuples.length; i++) {
-            if (isSlotUsed(i) && tuples[i].equals(t)) {
-                tuples[i] = null;
-                markSlotUsed(i, false);
-                return;
-            }
-        }
-        throw new DbException("invalid tuple given");
+        int i = slotOf(t);
+        if (i < 0) throw new DbException("invalid tuple given");
+        tuples[i] = null;
+        markSlotUsed(i, false);
+        writeSlot(i, null);
+    }
+
+    /**
+     * Replace a tuple on this page by another in its slot; updated takes
+     * over old's record id.
+     * @throws DbException if old is not on this page or the tupledesc of
+     *         updated is mismatch.
+     */
+    public void updateTuple(Tuple old, Tuple updated) throws DbException {
+        if (!updated.getTupleDesc().equals(td)) throw new DbException("tupledesc doesn't match");
+        int i = slotOf(old);
+        if (i < 0) throw new DbException("invalid tuple given");
+        updated.setRecordId(new RecordId(pid, i));
+        writeSlot(i, updated);
+        tuples[i] = updated;
+    }
+
+    /** @return true if t is stored on this page */
+    public boolean contains(Tuple t) {
+        return slotOf(t) >= 0;
+    }
+
+    /** @return the slot holding t, or -1 if t is not on this page */
+    private int slotOf(Tuple t) {
+        // tuples are equal only if their record ids are, so t can only be in its own slot
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) return -1;
+        int i = rid.getTupleNumber();
+        return i >= 0 && i < numSlots && isSlotUsed(i) && getTuple(i).equals(t) ? i : -1;
     }
 
     /**
@@ -260,14 +336,22 @@ public class HeapPage implements Page {
      */
     public void insertTuple(Tuple t) throws DbException {
         if (!t.getTupleDesc().equals(td)) throw new DbException("tupledesc doesn't match");
-        for (int i = 0; i < tuples.length; ++i)
-            if (!isSlotUsed(i)) {
-                markSlotUsed(i, true);
-                t.setRecordId(new RecordId(pid, i));
-                tuples[i] = t;
-                return;
-            }
-        throw new DbException("page is full");
+        int i = getFirstEmptySlot();
+        if (i < 0) throw new DbException("page is full");
+        markSlotUsed(i, true);
+        t.setRecordId(new RecordId(pid, i));
+        writeSlot(i, t);
+        tuples[i] = t;
+    }
+
+    /**
+     * @return the slot the next {@link #insertTuple} will use, or -1 if the
+     *         page is full
+     */
+    public int getFirstEmptySlot() {
+        for (int i = 0; i < numSlots; ++i)
+            if (!isSlotUsed(i)) return i;
+        return -1;
     }
 
     /**
@@ -288,33 +372,62 @@ public class HeapPage implements Page {
         return tid;      
     }
 
+    /**
+     * Returns the LSN of the last log record that changed this page, or -1
+     * if none was logged since it was read
+     */
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * @return the number of tuple slots on this page.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * @return the tuple stored in slot i, or null if the slot is empty.
+     */
+    public Tuple getTuple(int i) {
+        if (!isSlotUsed(i)) return null;
+        Tuple t = tuples[i];
+        if (t == null) tuples[i] = t = readTuple(i);
+        return t;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int res = 0;
-        for (int i = 0, cnt = 0, cur; i < header.length; ++i, cnt = 0) {
-            cur = header[i];
-            while (cnt++ < 8) {
-                res += ((cur & 1) ^ 1);
-                cur >>= 1;
-            }
-        }
-        return res;
+        int used = 0;
+        for (int i = 0; i < numSlots / 8; ++i)
+            used += Integer.bitCount(data[i] & 0xff);
+        // the header's last byte may have bits past the last slot
+        if (numSlots % 8 != 0)
+            used += Integer.bitCount(data[numSlots / 8] & ((1 << numSlots % 8) - 1));
+        return numSlots - used;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        return (header[i / 8] & (1 << (i % 8))) != 0;
+        return (data[i / 8] & (1 << (i % 8))) != 0;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        header[i / 8] ^= (1 << (i % 8));
+        ensureOwnData();
+        if (value) data[i / 8] |= (1 << (i % 8));
+        else data[i / 8] &= ~(1 << (i % 8));
     }
 
     /**
@@ -322,8 +435,28 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        return Arrays.stream(tuples).filter(Objects::nonNull).iterator();
-    } 
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < numSlots && !isSlotUsed(i)) ++i;
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (next >= numSlots) throw new NoSuchElementException();
+                Tuple t = getTuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+        };
+    }
 
 }
 
@@ -0,0 +1,582 @@
+package simpledb.storage;
+
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LockManager implements strict two-phase, two-level locking for the
+ * BufferPool. Tables (keyed by {@link DbFile#getId()}) are locked in one of
+ * the five multi-granularity modes IS, IX, S, SIX and X; pages below them
+ * in S or X. Before locking a page, a transaction takes the matching
+ * intention lock on its table; if its table lock already covers the access
+ * (S or SIX for reads, X for anything) no page lock is taken at all. Once a
+ * transaction holds more than the escalation threshold of page locks on a
+ * table, they are traded for a single S or X table lock.
+ * <p>
+ * Every locked resource has a lock head holding a FIFO queue of requests.
+ * A new request is granted immediately only if it is compatible with every
+ * granted request and nobody is already waiting, so writers are not
+ * starved by a stream of readers. A transaction that asks for a stronger
+ * mode on a resource it already holds is converted in place if that is
+ * compatible with the other holders, and otherwise waits ahead of all
+ * other waiters.
+ * <p>
+ * Waiting threads park until a release grants their request. Deadlocks are
+ * broken by a {@link DeadlockDetector}, fed with the wait-for edges of each
+ * resource whenever its queue changes; as a last resort a request that
+ * waits longer than the wait timeout aborts its transaction.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    public enum LockMode {
+        INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+        //                                      IS     IX     S      SIX    X
+        private static final boolean[][] COMPATIBLE = {
+                /* IS  */ {true,  true,  true,  true,  false},
+                /* IX  */ {true,  true,  false, false, false},
+                /* S   */ {true,  false, true,  false, false},
+                /* SIX */ {true,  false, false, false, false},
+                /* X   */ {false, false, false, false, false}};
+
+        /** @return the page lock mode needed for perm */
+        public static LockMode of(Permissions perm) {
+            return perm == Permissions.READ_ONLY ? SHARED : EXCLUSIVE;
+        }
+
+        /** @return the table lock mode needed before locking a page for perm */
+        public static LockMode intentionOf(Permissions perm) {
+            return perm == Permissions.READ_ONLY ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+        }
+
+        boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode implies holding other */
+        boolean covers(LockMode other) {
+            return join(other) == this;
+        }
+
+        /** @return the weakest mode covering both this and other */
+        LockMode join(LockMode other) {
+            if (this == other) return this;
+            if (this == EXCLUSIVE || other == EXCLUSIVE) return EXCLUSIVE;
+            if (this == INTENTION_SHARED) return other;
+            if (other == INTENTION_SHARED) return this;
+            // any two of IX, S, SIX
+            return SHARED_INTENTION_EXCLUSIVE;
+        }
+    }
+
+    private static class Request {
+        final TransactionId tid;
+        final Thread thread;
+        LockMode mode;
+        /** waiting to convert a granted lock to this mode */
+        boolean conversion;
+        volatile boolean granted;
+        /** chosen as a deadlock victim while waiting */
+        volatile boolean aborted;
+        /** the resource and lock head this request waits on, set while waiting */
+        Object resource;
+        LockHead head;
+
+        Request(TransactionId tid, LockMode mode) {
+            this.tid = tid;
+            this.mode = mode;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /** State of a single lock. All fields are protected by the head's monitor. */
+    private static class LockHead {
+        final LinkedList<Request> granted = new LinkedList<>();
+        final LinkedList<Request> waiting = new LinkedList<>();
+        /** set once the head has been unlinked from the lock table */
+        boolean retired = false;
+
+        Request grantedTo(TransactionId tid) {
+            for (Request r : granted)
+                if (r.tid.equals(tid)) return r;
+            return null;
+        }
+
+        boolean compatible(Request req) {
+            for (Request r : granted) {
+                if (r.tid.equals(req.tid)) continue;
+                if (!r.mode.compatibleWith(req.mode)) return false;
+            }
+            return true;
+        }
+    }
+
+    /** The locks one transaction holds. */
+    private static class TxnLocks {
+        /** locked pages and tables (the latter keyed by Integer table id) */
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        final ConcurrentHashMap<Integer, AtomicInteger> pagesPerTable = new ConcurrentHashMap<>();
+        final AtomicInteger exclusive = new AtomicInteger();
+    }
+
+    /** Default time a request may wait before its transaction is aborted, in milliseconds. */
+    public static final long DEFAULT_WAIT_TIMEOUT = 1000;
+    /** Default number of page locks on one table after which they are escalated to a table lock. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1024;
+
+    /** lock heads of pages (keyed by PageId) and tables (keyed by Integer table id) */
+    private final ConcurrentHashMap<Object, LockHead> heads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionId, Request> waitingRequests = new ConcurrentHashMap<>();
+    /** the locks each transaction holds, so releasing them does not scan the lock table */
+    private final ConcurrentHashMap<TransactionId, TxnLocks> locksOf = new ConcurrentHashMap<>();
+    private final long waitTimeout;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final DeadlockDetector detector;
+
+    private final AtomicLong requests = new AtomicLong(), waits = new AtomicLong(), timeouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong();
+    private final AtomicLong waiting = new AtomicLong(), maxQueueDepth = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+
+    public LockManager() {
+        this(DEFAULT_WAIT_TIMEOUT);
+    }
+
+    /**
+     * @param waitTimeout milliseconds a request may wait for a lock before
+     *            its transaction is aborted
+     */
+    public LockManager(long waitTimeout) {
+        this(waitTimeout, DeadlockDetector.VictimPolicy.YOUNGEST, DeadlockDetector.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param waitTimeout milliseconds a request may wait for a lock before
+     *            its transaction is aborted
+     * @param victimPolicy how the deadlock detector picks the transaction
+     *            to abort
+     * @param detectionInterval milliseconds between deadlock detection
+     *            passes while transactions are waiting
+     */
+    public LockManager(long waitTimeout, DeadlockDetector.VictimPolicy victimPolicy, long detectionInterval) {
+        this.waitTimeout = waitTimeout;
+        this.detector = new DeadlockDetector(this, victimPolicy, detectionInterval);
+    }
+
+    public DeadlockDetector getDeadlockDetector() {
+        return detector;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * @param threshold number of page locks a transaction may hold on one
+     *            table before they are escalated to a table lock
+     */
+    public void setEscalationThreshold(int threshold) {
+        escalationThreshold = threshold;
+    }
+
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * page, either directly or through a covering table lock.
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        LockMode table = heldMode(tid, pid.getTableId());
+        return (table != null && table.covers(LockMode.SHARED)) || heldMode(tid, pid) != null;
+    }
+
+    /** @return the mode tid holds on resource, or null */
+    private LockMode heldMode(TransactionId tid, Object resource) {
+        LockHead head = heads.get(resource);
+        if (head == null) return null;
+        synchronized (head) {
+            Request r = head.grantedTo(tid);
+            return r == null ? null : r.mode;
+        }
+    }
+
+    /**
+     * Lock a page for the given access, blocking until it is granted. Takes
+     * the intention lock on the page's table first and escalates to a table
+     * lock if the transaction holds too many page locks on it.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen as a
+     *         deadlock victim or a lock could not be granted within the
+     *         wait timeout
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        int tableId = pid.getTableId();
+        LockMode mode = LockMode.of(perm);
+        LockMode table = heldMode(tid, tableId);
+        if (table != null && table.covers(mode)) return;
+        lock(tid, tableId, LockMode.intentionOf(perm));
+        lock(tid, pid, mode);
+        escalateIfNeeded(tid, tableId);
+    }
+
+    /**
+     * Lock a page like {@link #acquireLock}, but only if the page lock can
+     * be granted without waiting. The intention lock on the table is still
+     * waited for.
+     *
+     * @return false if another transaction holds or waits for a
+     *         conflicting lock on the page
+     * @throws TransactionAbortedException if the table's intention lock
+     *         could not be granted
+     */
+    public boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        int tableId = pid.getTableId();
+        LockMode mode = LockMode.of(perm);
+        LockMode table = heldMode(tid, tableId);
+        if (table != null && table.covers(mode)) return true;
+        lock(tid, tableId, LockMode.intentionOf(perm));
+        if (!tryLock(tid, pid, mode)) return false;
+        escalateIfNeeded(tid, tableId);
+        return true;
+    }
+
+    private void escalateIfNeeded(TransactionId tid, int tableId) throws TransactionAbortedException {
+        TxnLocks locks = locksOf.get(tid);
+        AtomicInteger onTable = locks == null ? null : locks.pagesPerTable.get(tableId);
+        if (onTable != null && onTable.get() > escalationThreshold) escalate(tid, tableId);
+    }
+
+    /**
+     * Lock a whole table in the given mode, blocking until it is granted.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen as a
+     *         deadlock victim or the lock could not be granted within the
+     *         wait timeout
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode)
+        throws TransactionAbortedException {
+        lock(tid, tableId, mode);
+    }
+
+    /**
+     * Replace tid's page locks on a table by one table lock: X if it has
+     * written any of the pages, otherwise S.
+     */
+    private void escalate(TransactionId tid, int tableId) throws TransactionAbortedException {
+        TxnLocks locks = locksOf.get(tid);
+        boolean wrote = false;
+        ArrayList<PageId> pages = new ArrayList<>();
+        for (Object r : locks.resources) {
+            if (!(r instanceof PageId) || ((PageId) r).getTableId() != tableId) continue;
+            pages.add((PageId) r);
+            if (heldMode(tid, r) == LockMode.EXCLUSIVE) wrote = true;
+        }
+        lock(tid, tableId, wrote ? LockMode.EXCLUSIVE : LockMode.SHARED);
+        for (PageId p : pages) releaseLock(tid, p);
+        escalations.incrementAndGet();
+    }
+
+    /** Acquire resource in mode (or convert tid's lock on it to cover mode), blocking until granted. */
+    private void lock(TransactionId tid, Object resource, LockMode mode)
+        throws TransactionAbortedException {
+        requests.incrementAndGet();
+        Request req;
+        LockHead head;
+        while (true) {
+            head = heads.computeIfAbsent(resource, k -> new LockHead());
+            synchronized (head) {
+                if (head.retired) continue;
+                Request mine = head.grantedTo(tid);
+                if (mine != null) {
+                    if (mine.mode.covers(mode)) return;
+                    req = new Request(tid, mine.mode.join(mode));
+                    req.conversion = true;
+                    if (head.compatible(req)) {
+                        convert(mine, req.mode);
+                        return;
+                    }
+                    head.waiting.addFirst(req);
+                } else {
+                    req = new Request(tid, mode);
+                    if (head.waiting.isEmpty() && head.compatible(req)) {
+                        grant(resource, head, req);
+                        return;
+                    }
+                    head.waiting.addLast(req);
+                }
+                req.resource = resource;
+                req.head = head;
+                waitingRequests.put(tid, req);
+                maxQueueDepth.accumulateAndGet(head.waiting.size(), Math::max);
+                refreshEdges(head);
+                break;
+            }
+        }
+        await(head, req);
+    }
+
+    /**
+     * Acquire resource in mode (or convert tid's lock on it to cover mode)
+     * if that is possible without waiting.
+     *
+     * @return false if the lock was not granted
+     */
+    private boolean tryLock(TransactionId tid, Object resource, LockMode mode) {
+        requests.incrementAndGet();
+        while (true) {
+            LockHead head = heads.computeIfAbsent(resource, k -> new LockHead());
+            synchronized (head) {
+                if (head.retired) continue;
+                Request mine = head.grantedTo(tid);
+                if (mine != null) {
+                    if (mine.mode.covers(mode)) return true;
+                    Request req = new Request(tid, mine.mode.join(mode));
+                    if (!head.compatible(req)) return false;
+                    convert(mine, req.mode);
+                    return true;
+                }
+                Request req = new Request(tid, mode);
+                // a head without requests is always granted, so a refused one is never left empty
+                if (!head.waiting.isEmpty() || !head.compatible(req)) return false;
+                grant(resource, head, req);
+                return true;
+            }
+        }
+    }
+
+    /** Park until req is granted, aborted as a deadlock victim, or the wait timeout expires. */
+    private void await(LockHead head, Request req) throws TransactionAbortedException {
+        waits.incrementAndGet();
+        waiting.incrementAndGet();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+        try {
+            while (!req.granted) {
+                if (req.aborted) throw new TransactionAbortedException();
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    synchronized (head) {
+                        if (req.granted) break;
+                        if (!req.aborted) dequeue(head, req);
+                    }
+                    timeouts.incrementAndGet();
+                    throw new TransactionAbortedException();
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waitingRequests.remove(req.tid, req);
+            detector.clear(req.tid);
+            long waited = System.nanoTime() - start;
+            waitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Abort the lock request tid is currently waiting on, waking its thread
+     * up with a TransactionAbortedException.
+     *
+     * @return false if tid is no longer waiting
+     */
+    boolean abortWaiter(TransactionId tid) {
+        Request req = waitingRequests.get(tid);
+        if (req == null) return false;
+        synchronized (req.head) {
+            if (req.granted || req.aborted) return false;
+            req.aborted = true;
+            dequeue(req.head, req);
+        }
+        LockSupport.unpark(req.thread);
+        return true;
+    }
+
+    /** Take a request that gave up waiting off its queue. Caller must hold head's monitor. */
+    private void dequeue(LockHead head, Request req) {
+        head.waiting.remove(req);
+        // whoever queued behind it may be grantable now
+        grantWaiters(req.resource, head);
+    }
+
+    /** Add req to head's granted group. Caller must hold head's monitor. */
+    private void grant(Object resource, LockHead head, Request req) {
+        head.granted.add(req);
+        TxnLocks locks = locksOf.computeIfAbsent(req.tid, k -> new TxnLocks());
+        locks.resources.add(resource);
+        if (resource instanceof PageId)
+            locks.pagesPerTable.computeIfAbsent(((PageId) resource).getTableId(), k -> new AtomicInteger()).incrementAndGet();
+        if (req.mode == LockMode.EXCLUSIVE) locks.exclusive.incrementAndGet();
+        req.granted = true;
+    }
+
+    /** Strengthen a granted lock to mode. Caller must hold its head's monitor. */
+    private void convert(Request mine, LockMode mode) {
+        if (mode == LockMode.EXCLUSIVE && mine.mode != LockMode.EXCLUSIVE)
+            locksOf.get(mine.tid).exclusive.incrementAndGet();
+        mine.mode = mode;
+    }
+
+    /**
+     * Grant waiting requests of head in FIFO order until the first one
+     * that conflicts, and wake their threads up. Retires the head if no
+     * requests are left. Caller must hold head's monitor.
+     */
+    private void grantWaiters(Object resource, LockHead head) {
+        Iterator<Request> it = head.waiting.iterator();
+        while (it.hasNext()) {
+            Request r = it.next();
+            if (!head.compatible(r)) break;
+            it.remove();
+            if (r.conversion) {
+                convert(head.grantedTo(r.tid), r.mode);
+                r.granted = true;
+            } else {
+                grant(resource, head, r);
+            }
+            LockSupport.unpark(r.thread);
+        }
+        if (head.granted.isEmpty() && head.waiting.isEmpty()) {
+            head.retired = true;
+            heads.remove(resource, head);
+        } else {
+            refreshEdges(head);
+        }
+    }
+
+    /**
+     * Recompute the wait-for edges of every request waiting on head: a
+     * waiter waits for each granted holder and each earlier waiter it
+     * conflicts with. Caller must hold head's monitor.
+     */
+    private void refreshEdges(LockHead head) {
+        ArrayList<Request> ahead = new ArrayList<>();
+        for (Request w : head.waiting) {
+            HashSet<TransactionId> blockers = new HashSet<>();
+            for (Request r : head.granted)
+                if (!r.tid.equals(w.tid) && !r.mode.compatibleWith(w.mode)) blockers.add(r.tid);
+            for (Request r : ahead)
+                if (!r.tid.equals(w.tid) && !r.mode.compatibleWith(w.mode)) blockers.add(r.tid);
+            detector.setWaitsFor(w.tid, blockers);
+            ahead.add(w);
+        }
+    }
+
+    /** @return the number of page and table locks tid holds */
+    public int numLocksHeld(TransactionId tid) {
+        TxnLocks locks = locksOf.get(tid);
+        return locks == null ? 0 : locks.resources.size();
+    }
+
+    /** @return the number of exclusive locks tid holds */
+    public int numExclusiveLocksHeld(TransactionId tid) {
+        TxnLocks locks = locksOf.get(tid);
+        return locks == null ? 0 : locks.exclusive.get();
+    }
+
+    /** @return the pages tid holds a page lock on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TxnLocks locks = locksOf.get(tid);
+        HashSet<PageId> pids = new HashSet<>();
+        if (locks != null)
+            for (Object r : locks.resources)
+                if (r instanceof PageId) pids.add((PageId) r);
+        return pids;
+    }
+
+    /**
+     * Release the lock tid holds on pid, if any. If pid is null, release
+     * every page and table lock held by tid; this only visits the
+     * resources tid has locked.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        if (pid == null) {
+            TxnLocks locks = locksOf.remove(tid);
+            if (locks != null)
+                for (Object r : locks.resources) release(tid, r);
+            return;
+        }
+        TxnLocks locks = locksOf.get(tid);
+        if (locks != null && locks.resources.remove(pid)) {
+            AtomicInteger onTable = locks.pagesPerTable.get(pid.getTableId());
+            if (onTable != null) onTable.decrementAndGet();
+        }
+        release(tid, pid);
+    }
+
+    private void release(TransactionId tid, Object resource) {
+        LockHead head = heads.get(resource);
+        if (head == null) return;
+        synchronized (head) {
+            Request mine = head.grantedTo(tid);
+            if (mine == null) return;
+            head.granted.remove(mine);
+            TxnLocks locks = locksOf.get(tid);
+            if (locks != null && mine.mode == LockMode.EXCLUSIVE) locks.exclusive.decrementAndGet();
+            // a pending conversion of a lock that is gone cannot be granted any more
+            head.waiting.removeIf(r -> r.conversion && r.tid.equals(tid));
+            grantWaiters(resource, head);
+        }
+    }
+
+    /** @return the number of lock requests made */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /** @return the number of waits that ended in an abort */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /** @return the total time spent waiting for locks, in nanoseconds */
+    public long getTotalWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /** @return the longest single lock wait, in nanoseconds */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /** @return the number of requests currently waiting */
+    public long getWaitingCount() {
+        return waiting.get();
+    }
+
+    /** @return the longest wait queue observed on a single resource */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /** Reset all counters, e.g. between benchmark runs. */
+    public void resetStats() {
+        requests.set(0);
+        waits.set(0);
+        timeouts.set(0);
+        waitNanos.set(0);
+        maxWaitNanos.set(0);
+        maxQueueDepth.set(0);
+        escalations.set(0);
+    }
+}
@@ -1,4 +1,3 @@
-
 package simpledb.storage;
 
 import simpledb.common.Database;
@@ -6,8 +5,13 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -36,47 +40,107 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Log records are appended to an in-memory log buffer rather than
+written to the file one field at a time.  Callers that need their
+records on disk wait on a future for the LSN just past them (see
+forceAsync and force); a single flusher thread writes the buffer out and
+calls fsync once for all LSNs requested in the meantime, so transactions
+committing together share one fsync.  The fsync itself runs without the
+log monitor held, so records keep being appended while it is in
+progress.  A caller that already holds the log monitor forces
+synchronously.
+
+<u> Recovery: </u>
+<p>
+
+Recovery follows ARIES.  Every record of a transaction points back to
+the transaction's previous record, every page remembers the LSN of the
+last record that changed it, and the buffer pool keeps a dirty page
+table with the LSN of the first logged change of each page not yet
+written back.  Checkpoints save the transaction table and the dirty
+page table.  Restart analyses the log from the last checkpoint to
+rebuild both tables, redoes logged changes starting from the oldest
+change of a dirty page, skipping changes the page on disk already holds,
+and undoes transactions that neither committed nor aborted by following
+their chains backwards, logging a compensation record (CLR) for every
+change undone so that undo is never repeated.  The abort of a running
+transaction uses the same undo.
+<p>
+Pages do not carry their LSN on disk, so that the page formats stay as
+they are.  Instead, the buffer pool logs a PAGE_WRITE record with the
+page's LSN after each write of a page with logged changes, and analysis
+uses these records to learn which changes the disk pages hold.  As in
+the rest of SimpleDb, a page is taken to be durable once it is written.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself only holds two long integers: the LSN of the
+CHECKPOINT record of the last complete checkpoint, or -1 if there are no
+checkpoints, and the LSN of the first record of the log.
+
+<li> The records are kept in segment files next to it, named after the
+log file followed by a dot and the LSN of the segment's first record in
+20 decimal digits.  A record's log sequence number (LSN) is its position
+in the log; LSNs keep growing when the head of the log is truncated, and
+the record with LSN l sits in the segment with the greatest first LSN
+not above l, at offset l minus that LSN.  A segment is closed at the
+first record boundary at least the segment size past its start, so
+records never span segments, and truncation just deletes the segments
+that lie wholly before the first record still needed.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All data in the segments consists of log records.  Log records are
+variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id (-1 for records of no transaction) and the long integer
+LSN of the transaction's previous record (-1 if there is none).
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with its own LSN.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+BEGIN_CHECKPOINT, CHECKPOINT, CLR and PAGE_WRITE
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT, COMMIT, BEGIN and BEGIN_CHECKPOINT records contain no
+additional data
 
-<li> UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li> UPDATE RECORDS consist of a page delta: the id of the page and the
+byte ranges the change rewrote, each with its before and after bytes.
+See PageDelta for the format and LogFile.print() for an example.
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> CLR records consist of the LSN of the next record of the
+transaction to undo, followed by the page delta that undid an update.
+CLRs are only ever redone.
+
+<li> PAGE_WRITE records consist of a page id and the LSN the page had
+when it was written to disk.
+
+<li> CHECKPOINT records end a checkpoint.  They consist of the LSN of
+the checkpoint's BEGIN_CHECKPOINT record, the active transactions at the
+time the checkpoint was taken and the dirty page table.  The format of
+the record is that LSN, an integer count of the number of transactions, followed by a
+long integer transaction id, a long integer first record LSN and a long
+integer last record LSN for each active transaction, then an integer
+count of dirty pages, followed by a page id and a long integer LSN of its
+first unwritten change for each dirty page.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
+    /** the log file, holding the header */
     private RandomAccessFile raf;
+    /** the segments by the LSN of their first record; the last one is appended to */
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<>(); // protected by this
+    private final long segmentSize;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,16 +148,46 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int PAGE_WRITE_RECORD = 7;
+    static final int BEGIN_CHECKPOINT_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
+    /** stands for "no record" wherever an LSN is expected */
+    static final long NO_LSN = -1;
+    /** transaction id of records that belong to no transaction */
+    static final long NO_TID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+    /** Default number of bytes after which a segment is closed. */
+    public static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    long currentOffset = -1;//LSN of the next record, protected by this
+    /** LSN of the first record in the file */
+    private long firstLsn = HEADER_SIZE; // protected by this
+    private long checkpointLsn = NO_CHECKPOINT_ID; // protected by this
+    /** LSN at which the log buffer's first byte will be written */
+    private long bufferStart = -1; // protected by this
+    private final ByteArrayOutputStream logBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(logBuffer);
+    /** the log is on disk up to this LSN */
+    private long durableOffset = 0; // protected by this
+    /** futures waiting for the log to be durable up to their key */
+    private final TreeMap<Long, CompletableFuture<Void>> forceWaiters = new TreeMap<>(); // protected by this
+    private Thread flusher = null; // protected by this
+
+    /** Milliseconds an idle flusher thread waits for work before exiting. */
+    public static final long FLUSHER_IDLE_TIMEOUT = 1000;
+
+    private final AtomicLong forceRequests = new AtomicLong(), forces = new AtomicLong();
+    private volatile boolean groupCommit = true;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    /** the transaction table: LSN of each running transaction's last record */
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -107,9 +201,31 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name; its segments are kept next to it
+        @param segmentSize The number of bytes after which a segment is
+            closed and the next one started
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
+        this.segmentSize = segmentSize;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        File[] files = f.getAbsoluteFile().getParentFile().listFiles();
+        for (File s : files == null ? new File[0] : files) {
+            String name = s.getName();
+            if (name.length() == f.getName().length() + 21 && name.startsWith(f.getName() + ".")) {
+                try {
+                    long start = Long.parseLong(name.substring(f.getName().length() + 1));
+                    segments.put(start, new RandomAccessFile(s, "rw"));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -129,18 +245,93 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
+            deleteSegments(new ArrayList<>(segments.keySet()));
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            firstLsn = HEADER_SIZE;
+            checkpointLsn = NO_CHECKPOINT_ID;
+            writeHeader();
+            bufferStart = currentOffset = durableOffset = firstLsn;
+            openSegment(firstLsn);
+        }
+    }
+
+    private File segmentFile(long start) {
+        return new File(logFile.getAbsoluteFile().getParentFile(), String.format("%s.%020d", logFile.getName(), start));
+    }
+
+    /** Start a new last segment whose first record has LSN start; protected by this. */
+    private void openSegment(long start) throws IOException {
+        RandomAccessFile seg = new RandomAccessFile(segmentFile(start), "rw");
+        seg.setLength(0);
+        segments.put(start, seg);
+    }
+
+    /** Close and delete the segments starting at the given LSNs; protected by this. */
+    private void deleteSegments(Collection<Long> starts) throws IOException {
+        for (long start : starts) {
+            segments.remove(start).close();
+            segmentFile(start).delete();
         }
     }
 
+    /** Write the header and force it, as recovery starts from it. */
+    private synchronized void writeHeader() throws IOException {
+        raf.seek(0);
+        raf.writeLong(checkpointLsn);
+        raf.writeLong(firstLsn);
+        raf.getChannel().force(true);
+    }
+
+    /** Write the log buffer to the end of the last segment, without
+        forcing it.  Must be called before reading the segments. */
+    private synchronized void drain() throws IOException {
+        if (bufferStart < 0 || logBuffer.size() == 0) return; // nothing appended yet
+        Map.Entry<Long, RandomAccessFile> tail = segments.lastEntry();
+        tail.getValue().seek(bufferStart - tail.getKey());
+        tail.getValue().write(logBuffer.toByteArray());
+        bufferStart += logBuffer.size();
+        logBuffer.reset();
+    }
+
+    /** Close the last segment if it is full: write it out, force it, as
+        forces only ever sync the last segment, and start the next one at
+        the current LSN; protected by this. */
+    private void rotate() throws IOException {
+        if (currentOffset - segments.lastKey() < segmentSize) return;
+        drain();
+        forces.incrementAndGet();
+        segments.lastEntry().getValue().getChannel().force(true);
+        openSegment(currentOffset);
+    }
+
+    /** Append the start of a record of tid (or NO_TID) and link it into
+        tid's chain; protected by this.
+        @return the LSN of the new record */
+    private long startRecord(int type, long tid) throws IOException {
+        preAppend();
+        rotate();
+        long lsn = currentOffset;
+        out.writeInt(type);
+        out.writeLong(tid);
+        if (tid == NO_TID) {
+            out.writeLong(NO_LSN);
+        } else {
+            Long prev = tidToLastLogRecord.put(tid, lsn);
+            out.writeLong(prev == null ? NO_LSN : prev);
+        }
+        return lsn;
+    }
+
+    /** Close the record started at lsn; protected by this. */
+    private void finishRecord(long lsn) throws IOException {
+        out.writeLong(lsn);
+        currentOffset = bufferStart + logBuffer.size();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -157,15 +348,14 @@ public class LogFile {
                 //should we verify that this is a live transaction?
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (needs tidToLastLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                long lsn = startRecord(ABORT_RECORD, tid.getId());
+                finishRecord(lsn);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -175,117 +365,64 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            long start = startRecord(COMMIT_RECORD, tid.getId());
+            finishRecord(start);
+            lsn = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        // wait outside the monitor so that other commits can join the same fsync
+        awaitDurable(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the
+        bytes that differ between the images are logged, so before must be
+        the image the page had when it was last logged.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, or -1 if the images are equal and
+            nothing was logged
 
         @see Page#getBeforeImage
     */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        PageDelta delta = PageDelta.diff(before, after);
+        if (delta.isEmpty()) return NO_LSN;
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           previous record of the transaction
+           page delta (see PageDelta.write)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = startRecord(UPDATE_RECORD, tid.getId());
+        delta.write(out);
+        finishRecord(lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+    /** Write a PAGE_WRITE record noting that the page was written to disk
+        holding every change up to pageLsn.  Must be called after the
+        write; the record need not be forced. */
+    public synchronized void logPageWritten(PageId pid, long pageLsn) throws IOException {
+        long lsn = startRecord(PAGE_WRITE_RECORD, NO_TID);
+        PageDelta.writePageId(out, pid);
+        out.writeLong(pageLsn);
+        finishRecord(lsn);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -298,51 +435,59 @@ public class LogFile {
             System.err.print("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = startRecord(BEGIN_RECORD, tid.getId());
+        finishRecord(lsn);
+        tidToFirstLogRecord.put(tid.getId(), lsn);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        Checkpoints are fuzzy: they flush no pages and hold neither the
+        buffer pool nor the log while the tables are collected.  A
+        BEGIN_CHECKPOINT record is written first, then the transaction
+        table and the dirty page table are saved in a CHECKPOINT record.
+        The tables may be slightly out of date by then; recovery makes up
+        for it by analysing the log from the BEGIN_CHECKPOINT record on.
+        Every change logged before BEGIN_CHECKPOINT is already in the
+        buffer pool's dirty page table when it is collected. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long begin, end;
+        synchronized (this) {
+            begin = startRecord(BEGIN_CHECKPOINT_RECORD, NO_TID);
+            finishRecord(begin);
+        }
+        Map<PageId, Long> dirty = Database.getBufferPool().getDirtyPageTable();
+        synchronized (this) {
+            end = startRecord(CHECKPOINT_RECORD, NO_TID);
+            out.writeLong(begin);
+            //write the transaction table
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+                out.writeLong(tidToLastLogRecord.getOrDefault(e.getKey(), e.getValue()));
+            }
+            //and the dirty page table
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                PageDelta.writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            finishRecord(end);
+        }
+        // outside the monitor, so commits keep going and may share the fsync
+        force();
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (this) {
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            if (end > checkpointLsn) {
+                checkpointLsn = end;
+                drain();
+                writeHeader();
             }
         }
 
@@ -350,99 +495,26 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Everything before the last checkpoint, the first
+        record of any transaction active at the checkpoint and the oldest
+        unwritten change of any page dirty at the checkpoint can go. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + 
-        (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        if (checkpointLsn == NO_CHECKPOINT_ID) return;
+
+        LogRecord cp = readRecord(checkpointLsn);
+        long minLogRecord = cp.beginCheckpointLsn;
+        for (long[] t : cp.txns.values()) minLogRecord = Math.min(minLogRecord, t[0]);
+        for (long l : cp.dirtyPages.values()) minLogRecord = Math.min(minLogRecord, l);
+        if (minLogRecord <= firstLsn) return;
+
+        // the header moves first, so that a crash in between leaves
+        // segments recovery ignores rather than a header pointing nowhere
+        firstLsn = minLogRecord;
+        writeHeader();
+        List<Long> dead = new ArrayList<>(segments.headMap(segments.floorKey(minLogRecord)).keySet());
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + ", DELETING " + dead.size() + " SEGMENTS");
+        deleteSegments(dead);
         //print();
     }
 
@@ -459,37 +531,43 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                long curOffset = raf.getFilePointer();
-                long ind = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(ind);
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-                        switch (type) {
-                            case BEGIN_RECORD:
-                            case ABORT_RECORD:
-                            case COMMIT_RECORD:
-                                break;
-                           case CHECKPOINT_RECORD: {
-                                int numXactions = raf.readInt();
-                                raf.skipBytes(numXactions * (LONG_SIZE << 1));
-                                break;
-                           }
-                           case UPDATE_RECORD: {
-                                Page before = readPageData(raf), after = readPageData(raf);
-                                if (record_tid == tid.getId()) {
-                                    PageId pid = before.getId();
-                                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(before);
-                                    Database.getBufferPool().discardPage(pid);
-                                }
-                           }
-                        }
-                        raf.skipBytes(LONG_SIZE);
-                    } catch (EOFException e) { break; }
-                }
-                raf.seek(curOffset);
+                Map<PageId, Page> pages = new HashMap<>();
+                undo(Collections.singleton(tid.getId()), pages);
+                installPages(pages);
+            }
+        }
+    }
+
+    /** Undo tids by walking their chains backwards, newest record of any
+        of them first.  Each undone update is applied to the page in
+        pages, read from disk the first time, and logged as a CLR so that
+        a later undo skips it.  Protected by this. */
+    private void undo(Set<Long> tids, Map<PageId, Page> pages) throws IOException {
+        TreeMap<Long, Long> next = new TreeMap<>(); // LSN to undo -> tid
+        for (long tid : tids) {
+            Long last = tidToLastLogRecord.get(tid);
+            if (last != null) next.put(last, tid);
+        }
+        while (!next.isEmpty()) {
+            Map.Entry<Long, Long> e = next.pollLastEntry();
+            long tid = e.getValue();
+            LogRecord r = readRecord(e.getKey());
+            long nextLsn = r.prevLsn;
+            if (r.type == UPDATE_RECORD) {
+                PageDelta compensation = r.delta.inverse();
+                long clr = startRecord(CLR_RECORD, tid);
+                out.writeLong(r.prevLsn);
+                compensation.write(out);
+                finishRecord(clr);
+                PageId pid = compensation.getPageId();
+                Page p = compensation.redo(diskPage(pages, pid));
+                p.setLSN(clr);
+                pages.put(pid, p);
+            } else if (r.type == CLR_RECORD) {
+                // that far was undone already
+                nextLsn = r.undoNextLsn;
             }
+            if (nextLsn != NO_LSN) next.put(nextLsn, tid);
         }
     }
 
@@ -500,7 +578,9 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            force();
             raf.close();
+            for (RandomAccessFile seg : segments.values()) seg.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -514,161 +594,479 @@ public class LogFile {
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
+                if (raf.length() < HEADER_SIZE || segments.isEmpty()) {
+                    // nothing to recover
+                    preAppend();
+                    return;
+                }
                 recoveryUndecided = false;
-                HashSet<Long> rollbackid = new HashSet<>(), commitid = new HashSet<>();
-                long curOffset = raf.getFilePointer();
                 raf.seek(0);
-                long prevCP = raf.readLong(); int skip = INT_SIZE;
-                if (prevCP != NO_CHECKPOINT_ID) {
-                    raf.seek(prevCP);
-                    raf.skipBytes(INT_SIZE + LONG_SIZE);
-                    int n = raf.readInt();
-                    skip += n * (LONG_SIZE << 1);
-                    for (long xid, xoff; n-- > 0;) {
-                        xid = raf.readLong(); xoff = raf.readLong();
-                        rollbackid.add(xid);
-                        tidToFirstLogRecord.put(xid, xoff);
+                checkpointLsn = raf.readLong();
+                firstLsn = raf.readLong();
+                bufferStart = currentOffset = firstLsn;
+                // left behind by a truncation that did not get to delete them
+                Long first = segments.floorKey(firstLsn);
+                if (first != null) deleteSegments(new ArrayList<>(segments.headMap(first).keySet()));
+
+                // analysis: rebuild the transaction and dirty page tables
+                Map<Long, Long> last = new HashMap<>();
+                Set<Long> finished = new HashSet<>();
+                Map<PageId, Long> dirty = new HashMap<>(), written = new HashMap<>(), lastChange = new HashMap<>();
+                long start = firstLsn;
+                if (checkpointLsn != NO_CHECKPOINT_ID) {
+                    // start from the checkpoint's tables and bring them up
+                    // to date with everything logged since it began
+                    LogRecord cp = readRecord(checkpointLsn);
+                    for (Map.Entry<Long, long[]> e : cp.txns.entrySet()) last.put(e.getKey(), e.getValue()[1]);
+                    dirty.putAll(cp.dirtyPages);
+                    start = cp.beginCheckpointLsn;
+                }
+                LogReader in = new LogReader(start);
+                for (LogRecord r; (r = in.next()) != null; ) {
+                    switch (r.type) {
+                        case BEGIN_CHECKPOINT_RECORD:
+                        case CHECKPOINT_RECORD:
+                            continue;
+                        case PAGE_WRITE_RECORD:
+                            written.merge(r.pid, r.pageLsn, Math::max);
+                            // clean unless it changed after the write
+                            if (lastChange.getOrDefault(r.pid, NO_LSN) <= r.pageLsn) dirty.remove(r.pid);
+                            continue;
+                        case UPDATE_RECORD:
+                        case CLR_RECORD:
+                            dirty.putIfAbsent(r.delta.getPageId(), r.lsn);
+                            lastChange.put(r.delta.getPageId(), r.lsn);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            finished.add(r.tid);
+                            break;
+                        case BEGIN_RECORD:
+                            // ids restart with the process, so this may reuse an old one
+                            finished.remove(r.tid);
+                            break;
                     }
+                    last.put(r.tid, r.lsn);
                 }
-                raf.seek(LONG_SIZE);
-                while (true) {
-                    try {
-                        long off = raf.getFilePointer();
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-                        switch (type) {
-                            case COMMIT_RECORD:
-                                commitid.add(record_tid);
-                                rollbackid.remove(record_tid);
-                                break;
-                            case ABORT_RECORD:
-                                rollbackid.add(record_tid);
-                                tidToFirstLogRecord.remove(record_tid);
-                                break;
-                            case BEGIN_RECORD:
-                                tidToFirstLogRecord.put(record_tid, off);
-                                break;
-                            case CHECKPOINT_RECORD:
-                                raf.skipBytes(skip);
-                                break;
-                            case UPDATE_RECORD: 
-                                readPageData(raf); readPageData(raf);
+                // drop a partly written last record
+                long end = in.position();
+                Map.Entry<Long, RandomAccessFile> tail = segments.floorEntry(end);
+                tail.getValue().setLength(end - tail.getKey());
+                deleteSegments(new ArrayList<>(segments.tailMap(tail.getKey(), false).keySet()));
+                bufferStart = currentOffset = durableOffset = end;
+
+                // redo: repeat history from the oldest change of a dirty page
+                Map<PageId, Page> pages = new HashMap<>();
+                int redone = 0, skipped = 0;
+                if (!dirty.isEmpty()) {
+                    in = new LogReader(Collections.min(dirty.values()));
+                    for (LogRecord r; (r = in.next()) != null; ) {
+                        if (r.type != UPDATE_RECORD && r.type != CLR_RECORD) continue;
+                        PageId pid = r.delta.getPageId();
+                        Long recLsn = dirty.get(pid);
+                        if (recLsn == null || r.lsn < recLsn || r.lsn <= written.getOrDefault(pid, NO_LSN)) {
+                            ++skipped; // the page on disk has this change
+                            continue;
                         }
-                        raf.skipBytes(LONG_SIZE);
-                    } catch (EOFException e) { break; }
+                        Page p = r.delta.redo(diskPage(pages, pid));
+                        p.setLSN(r.lsn);
+                        pages.put(pid, p);
+                        ++redone;
+                    }
                 }
-                
-                raf.seek(LONG_SIZE);
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-                        switch (type) {
-                            case COMMIT_RECORD:
-                            case ABORT_RECORD:
-                            case BEGIN_RECORD:
-                                break;
-                            case CHECKPOINT_RECORD: 
-                                raf.skipBytes(skip);
-                                break;
-                            case UPDATE_RECORD: {
-                                Page before = readPageData(raf), after = readPageData(raf);
-				PageId bfid = before.getId(), afid = after.getId();
-                                if (commitid.contains(record_tid)) {
-                                    Database.getCatalog().getDatabaseFile(afid.getTableId()).writePage(after);
-				    Database.getBufferPool().discardPage(afid);
-				} else if (rollbackid.contains(record_tid)) {
-				    Database.getCatalog().getDatabaseFile(bfid.getTableId()).writePage(before);
-				    Database.getBufferPool().discardPage(bfid);
-				}
-                            }
-                        }
-                        raf.skipBytes(LONG_SIZE);
-                    } catch (EOFException e) { break; }
-                }      
-                raf.seek(curOffset);
+                Debug.log("RECOVERY: redid " + redone + " changes, skipped " + skipped);
+
+                // undo: roll back the losers and mark them aborted
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                for (Map.Entry<Long, Long> e : last.entrySet()) {
+                    if (!finished.contains(e.getKey())) tidToLastLogRecord.put(e.getKey(), e.getValue());
+                }
+                Set<Long> losers = new HashSet<>(tidToLastLogRecord.keySet());
+                undo(losers, pages);
+                for (long tid : losers) {
+                    long lsn = startRecord(ABORT_RECORD, tid);
+                    finishRecord(lsn);
+                }
+                tidToLastLogRecord.clear();
+                installPages(pages);
+                force();
             }
          }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+    /** @return pid as currently held in pages; the first time, its last
+        logged image from the buffer pool, or from disk if it is not cached */
+    private Page diskPage(Map<PageId, Page> pages, PageId pid) {
+        return pages.computeIfAbsent(pid, k -> {
+            // the file may lack committed changes the page writer has not written yet
+            Page p = Database.getBufferPool().loggedImage(k);
+            return p != null ? p : Database.getCatalog().getDatabaseFile(k.getTableId()).readPage(k);
+        });
+    }
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+    /** Write pages recovered from the log to disk, after the log records
+        that produced them, and drop any cached copies. */
+    private void installPages(Map<PageId, Page> pages) throws IOException {
+        force();
+        for (Page p : pages.values()) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            logPageWritten(p.getId(), p.getLSN());
+            Database.getBufferPool().discardPage(p.getId());
+        }
+    }
 
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    /** A log record as read back from the file. */
+    static class LogRecord {
+        int type;
+        long tid, prevLsn, lsn;
+        /** UPDATE and CLR records */
+        PageDelta delta;
+        /** CLR records */
+        long undoNextLsn;
+        /** PAGE_WRITE records */
+        PageId pid;
+        long pageLsn;
+        /** CHECKPOINT records: where the checkpoint began, tid to its first and
+            last LSN, and the dirty page table */
+        long beginCheckpointLsn;
+        Map<Long, long[]> txns;
+        Map<PageId, Long> dirtyPages;
+
+        @Override
+        public String toString() {
+            String[] names = {null, "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "CLR", "PAGE_WRITE",
+                "BEGIN_CHECKPOINT"};
+            StringBuilder sb = new StringBuilder();
+            sb.append(lsn).append(": ").append(names[type]).append(" tid ").append(tid).append(" prev ").append(prevLsn);
+            switch (type) {
+                case CLR_RECORD:
+                    sb.append(" undo next ").append(undoNextLsn).append(" delta of ").append(delta);
                     break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                case UPDATE_RECORD:
+                    sb.append(" delta of ").append(delta);
                     break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                case PAGE_WRITE_RECORD:
+                    sb.append(' ').append(pid).append(" at ").append(pageLsn);
                     break;
-
                 case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
+                    sb.append(" begun at ").append(beginCheckpointLsn).append(" active");
+                    for (Map.Entry<Long, long[]> e : txns.entrySet())
+                        sb.append(' ').append(e.getKey()).append(" [").append(e.getValue()[0]).append(", ").append(e.getValue()[1]).append(']');
+                    sb.append(" dirty ").append(dirtyPages);
                     break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Reads records sequentially from an LSN on; the log monitor must be held. */
+    private class LogReader {
+        private final DataInputStream in;
+        /** LSN of the next byte read, and just past the last whole record */
+        private long pos, end;
+
+        LogReader(long lsn) throws IOException {
+            drain();
+            pos = end = lsn;
+            in = new DataInputStream(new FilterInputStream(new BufferedInputStream(new SegmentStream(lsn))) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) ++pos;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) pos += n;
+                    return n;
+                }
+            });
+        }
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+        /** @return the LSN just past the last record read */
+        long position() {
+            return end;
+        }
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+        /** @return the next record, or null at the end of the log or at a
+            record that was not completely written */
+        LogRecord next() throws IOException {
+            LogRecord r = new LogRecord();
+            r.lsn = pos;
+            try {
+                r.type = in.readInt();
+                r.tid = in.readLong();
+                r.prevLsn = in.readLong();
+                switch (r.type) {
+                    case BEGIN_RECORD:
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                    case BEGIN_CHECKPOINT_RECORD:
+                        break;
+                    case CLR_RECORD:
+                        r.undoNextLsn = in.readLong();
+                        r.delta = PageDelta.read(in);
+                        break;
+                    case UPDATE_RECORD:
+                        r.delta = PageDelta.read(in);
+                        break;
+                    case PAGE_WRITE_RECORD:
+                        r.pid = PageDelta.readPageId(in);
+                        r.pageLsn = in.readLong();
+                        break;
+                    case CHECKPOINT_RECORD: {
+                        r.beginCheckpointLsn = in.readLong();
+                        r.txns = new HashMap<>();
+                        for (int n = in.readInt(); n > 0; --n) {
+                            long tid = in.readLong();
+                            r.txns.put(tid, new long[]{in.readLong(), in.readLong()});
+                        }
+                        r.dirtyPages = new HashMap<>();
+                        for (int n = in.readInt(); n > 0; --n) {
+                            PageId pid = PageDelta.readPageId(in);
+                            r.dirtyPages.put(pid, in.readLong());
+                        }
+                        break;
+                    }
+                    default:
+                        return null;
+                }
+                if (in.readLong() != r.lsn) return null;
+            } catch (EOFException e) {
+                return null;
+            } catch (IOException | RuntimeException e) {
+                // garbage in a torn tail
+                Debug.log("LOG ENDS AT " + r.lsn + ": " + e);
+                return null;
+            }
+            end = pos;
+            return r;
+        }
+    }
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+    /** Reads the bytes of the log from an LSN on, going on from the end
+        of a segment to the one starting right after it.  Reads are
+        positional, so appending to the last segment meanwhile is fine. */
+    private class SegmentStream extends InputStream {
+        private long next;
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+        SegmentStream(long lsn) {
+            next = lsn;
+        }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
 
-                    break;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            Map.Entry<Long, RandomAccessFile> seg = segments.floorEntry(next);
+            while (seg != null) {
+                int n = seg.getValue().getChannel().read(ByteBuffer.wrap(b, off, len), next - seg.getKey());
+                if (n > 0) {
+                    next += n;
+                    return n;
                 }
+                seg = segments.higherEntry(seg.getKey());
+                // a gap means the segment before it was cut short
+                if (seg != null && seg.getKey() != next) return -1;
+            }
+            return -1;
+        }
+    }
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
-                break;
+    /** @return the record with the given LSN; the log monitor must be held */
+    private LogRecord readRecord(long lsn) throws IOException {
+        LogRecord r = new LogReader(lsn).next();
+        if (r == null) throw new IOException("no log record at " + lsn);
+        return r;
+    }
+
+    /** Print out a human readable represenation of the log */
+    public synchronized void print() throws IOException {
+        drain();
+        raf.seek(0);
+        System.out.println("0: checkpoint record at LSN " + raf.readLong());
+        System.out.println(LONG_SIZE + ": first record at LSN " + raf.readLong());
+        System.out.println("segments at " + segments.keySet());
+        LogReader in = new LogReader(firstLsn);
+        for (LogRecord r; (r = in.next()) != null; ) System.out.println(r);
+        drain();
+    }
+
+    /** Force the whole log to disk, waiting for the flusher if the caller
+        does not hold the log monitor. */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            forceNow();
+            return;
+        }
+        long lsn;
+        synchronized (this) {
+            lsn = currentOffset;
+        }
+        awaitDurable(lsn);
+    }
+
+    /** Force the log up to and including the record at lsn. */
+    public void forceTo(long lsn) throws IOException {
+        if (Thread.holdsLock(this)) {
+            if (lsn >= durableOffset) forceNow();
+            return;
+        }
+        // the log becomes durable a whole buffer at a time, so being durable
+        // past the start of the record covers all of it
+        awaitDurable(lsn + 1);
+    }
+
+    /** @return the LSN just past the last record appended */
+    public synchronized long getCurrentOffset() {
+        return currentOffset;
+    }
+
+    /** @return the LSN up to which the log is known to be on disk */
+    public synchronized long getDurableOffset() {
+        return durableOffset;
+    }
+
+    /** @return the number of times a caller asked for the log to be forced */
+    public long getForceRequestCount() {
+        return forceRequests.get();
+    }
+
+    /** @return the number of fsyncs issued on the log; with group commit this
+        is lower than getForceRequestCount() */
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    /**
+     * Turn group commit on or off. With it off, every caller forcing the
+     * log issues its own fsync while holding the log monitor, so forces
+     * are never shared; meant for measuring what group commit saves.
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    public void resetStats() {
+        forceRequests.set(0);
+        forces.set(0);
+    }
+
+    /**
+     * Ask for the log to be made durable up to lsn.
+     *
+     * @return a future completed once every record ending at or before lsn
+     *         is on disk, or completed exceptionally if the force failed
+     */
+    public synchronized CompletableFuture<Void> forceAsync(long lsn) {
+        forceRequests.incrementAndGet();
+        // nothing past the last record can become durable
+        lsn = Math.min(lsn, currentOffset);
+        if (lsn <= durableOffset) return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> f = forceWaiters.computeIfAbsent(lsn, k -> new CompletableFuture<>());
+        if (flusher == null) {
+            flusher = new Thread(this::runFlusher, "log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        notifyAll();
+        return f;
+    }
+
+    private void awaitDurable(long lsn) throws IOException {
+        if (!groupCommit) {
+            synchronized (this) {
+                forceRequests.incrementAndGet();
+                forceNow();
             }
+            return;
+        }
+        try {
+            forceAsync(lsn).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
         }
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /** Write out the buffer and fsync while holding the log monitor. */
+    private synchronized void forceNow() throws IOException {
+        drain();
+        if (!segments.isEmpty()) {
+            forces.incrementAndGet();
+            segments.lastEntry().getValue().getChannel().force(true);
+        }
+        durable(currentOffset);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Record that the log is on disk up to lsn and release its waiters. */
+    private synchronized void durable(long lsn) {
+        durableOffset = Math.max(durableOffset, lsn);
+        SortedMap<Long, CompletableFuture<Void>> done = forceWaiters.headMap(durableOffset, true);
+        for (CompletableFuture<Void> f : done.values()) f.complete(null);
+        done.clear();
+    }
+
+    private void runFlusher() {
+        while (true) {
+            long target;
+            FileChannel ch;
+            synchronized (this) {
+                if (forceWaiters.isEmpty()) {
+                    try {
+                        wait(FLUSHER_IDLE_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        // check for work again
+                    }
+                    if (forceWaiters.isEmpty()) {
+                        flusher = null;
+                        return;
+                    }
+                }
+                // everything appended so far goes out with this fsync
+                target = currentOffset;
+                // earlier segments were forced when they were closed
+                ch = segments.isEmpty() ? null : segments.lastEntry().getValue().getChannel();
+                try {
+                    drain();
+                } catch (IOException e) {
+                    fail(e);
+                    continue;
+                }
+            }
+            try {
+                if (ch != null) {
+                    forces.incrementAndGet();
+                    ch.force(true);
+                }
+            } catch (ClosedChannelException e) {
+                continue; // the log was reset; force the new segment
+            } catch (IOException e) {
+                synchronized (this) {
+                    fail(e);
+                }
+                continue;
+            }
+            durable(target);
+        }
+    }
+
+    /** Fail every pending force; protected by this. */
+    private void fail(IOException e) {
+        for (CompletableFuture<Void> f : forceWaiters.values()) f.completeExceptionally(e);
+        forceWaiters.clear();
     }
 
 }
@@ -0,0 +1,100 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each resident page
+ * remembers the logical times of its last K references and the victim is
+ * the page whose K-th most recent reference is oldest. Pages referenced
+ * fewer than K times have an infinite backward K-distance and are evicted
+ * first, least recently used among them first, so a one-pass scan cannot
+ * push out pages that are referenced repeatedly (e.g. B+ tree roots).
+ * <p>
+ * Admission and access are O(log n) in the number of resident pages;
+ * victim selection takes the head of an ordered set and is O(log n) plus
+ * the number of non-evictable pages skipped.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    private class History {
+        final PageId pid;
+        final long[] refs = new long[k];
+        int numRefs = 0;
+
+        History(PageId pid) {
+            this.pid = pid;
+        }
+
+        /** @return the K-th most recent reference, or -1 if there are fewer than K */
+        long kthRef() {
+            return numRefs < k ? -1 : refs[numRefs % k];
+        }
+
+        long lastRef() {
+            return refs[(numRefs - 1) % k];
+        }
+
+        void reference(long time) {
+            refs[numRefs++ % k] = time;
+            // keep the counter bounded; only numRefs mod k and numRefs >= k matter
+            if (numRefs == k << 1) numRefs = k;
+        }
+    }
+
+    private final int k;
+    private long clock = 0;
+    private final HashMap<PageId, History> histories = new HashMap<>();
+    private final TreeSet<History> order = new TreeSet<>((a, b) -> {
+        int c = Long.compare(a.kthRef(), b.kthRef());
+        if (c == 0) c = Long.compare(a.lastRef(), b.lastRef());
+        return c;
+    });
+
+    public LruKReplacementPolicy() {
+        this(2);
+    }
+
+    /**
+     * @param k the number of most recent references to remember per page
+     */
+    public LruKReplacementPolicy(int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+    }
+
+    public synchronized void admit(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(pid);
+            histories.put(pid, h);
+        } else {
+            order.remove(h);
+        }
+        h.reference(clock++);
+        order.add(h);
+    }
+
+    public synchronized void access(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) return;
+        order.remove(h);
+        h.reference(clock++);
+        order.add(h);
+    }
+
+    public synchronized void remove(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null) order.remove(h);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        for (History h : order) {
+            if (!evictable.test(h.pid)) continue;
+            order.remove(h);
+            histories.remove(h.pid);
+            return h.pid;
+        }
+        return null;
+    }
+}
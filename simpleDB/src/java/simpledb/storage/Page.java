@@ -35,6 +35,15 @@ public interface Page {
    */
   void markDirty(boolean dirty, TransactionId tid);
 
+    /**
+     * Get the LSN of the last log record that changed this page, or -1 if
+     * no change was logged since the page was read from disk.
+     */
+    long getLSN();
+
+    /** Record that the log record with the given LSN changed this page. */
+    void setLSN(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
@@ -0,0 +1,183 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the body of an UPDATE log record: the byte ranges of one
+ * page that a change rewrote, each with its bytes before and after the
+ * change.
+ * <p>
+ * A delta is computed by diffing the page against the image it had when it
+ * was last logged, so for a HeapPage a tuple insert or delete logs just the
+ * header byte holding the slot's bit and the slot's tuple bytes, and for a
+ * B+ tree page an entry insert logs the entries it shifted and the pointers
+ * it changed, instead of two full page images. Ranges closer together than
+ * the cost of a range header are merged.
+ * <p>
+ * Redo and undo are physical within the page: they copy the after or
+ * before bytes of every range over the page's current bytes, so they must
+ * be applied to the page in the state the delta was computed against
+ * (undo) or produced (redo), in log order for redo and reverse log order
+ * for undo. Applying a delta twice is harmless.
+ */
+public class PageDelta {
+
+    /** ranges separated by at most this many equal bytes are merged */
+    static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before, after;
+
+    private PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta turning before into after, two images of the same page
+     */
+    public static PageDelta diff(Page before, Page after) {
+        byte[] b = before.getPageData(), a = after.getPageData();
+        if (b.length != a.length) throw new IllegalArgumentException("page images differ in size");
+        List<int[]> ranges = new ArrayList<>();
+        for (int i = 0; i < a.length; ) {
+            if (a[i] == b[i]) {
+                ++i;
+                continue;
+            }
+            int start = i, end = i + 1, gap = 0;
+            for (i = end; i < a.length && gap <= MERGE_GAP; ++i) {
+                if (a[i] != b[i]) {
+                    end = i + 1;
+                    gap = 0;
+                } else ++gap;
+            }
+            i = end;
+            ranges.add(new int[]{start, end});
+        }
+        int n = ranges.size();
+        int[] offsets = new int[n];
+        byte[][] bs = new byte[n][], as = new byte[n][];
+        for (int k = 0; k < n; ++k) {
+            int start = ranges.get(k)[0], end = ranges.get(k)[1];
+            offsets[k] = start;
+            bs[k] = Arrays.copyOfRange(b, start, end);
+            as[k] = Arrays.copyOfRange(a, start, end);
+        }
+        return new PageDelta(after.getId(), offsets, bs, as);
+    }
+
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return true if the change rewrote no bytes */
+    public boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    /** @return the number of page bytes this delta rewrites */
+    public int changedBytes() {
+        int n = 0;
+        for (byte[] r : after) n += r.length;
+        return n;
+    }
+
+    /** @return the delta that undoes this one, as logged by a compensation record */
+    public PageDelta inverse() {
+        return new PageDelta(pid, offsets, after, before);
+    }
+
+    /** @return p with this delta's after bytes applied */
+    public Page redo(Page p) throws IOException {
+        return apply(p, after);
+    }
+
+    /** @return p with this delta's before bytes applied */
+    public Page undo(Page p) throws IOException {
+        return apply(p, before);
+    }
+
+    private Page apply(Page p, byte[][] bytes) throws IOException {
+        byte[] data = p.getPageData();
+        for (int k = 0; k < offsets.length; ++k)
+            System.arraycopy(bytes[k], 0, data, offsets[k], bytes[k].length);
+        return newPage(pid, data);
+    }
+
+    /**
+     * Write this delta: the page id's serialized ints preceded by their
+     * count, the number of ranges, and per range its offset, length, before
+     * bytes and after bytes.
+     */
+    public void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeInt(offsets.length);
+        for (int k = 0; k < offsets.length; ++k) {
+            out.writeInt(offsets[k]);
+            out.writeInt(after[k].length);
+            out.write(before[k]);
+            out.write(after[k]);
+        }
+    }
+
+    public static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] bs = new byte[n][], as = new byte[n][];
+        for (int k = 0; k < n; ++k) {
+            offsets[k] = in.readInt();
+            bs[k] = new byte[in.readInt()];
+            as[k] = new byte[bs[k].length];
+            in.readFully(bs[k]);
+            in.readFully(as[k]);
+        }
+        return new PageDelta(pid, offsets, bs, as);
+    }
+
+    /** Write pid as the count of its serialized ints followed by the ints. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] id = pid.serialize();
+        out.writeByte(id.length);
+        for (int v : id) out.writeInt(v);
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        int[] id = new int[in.readByte()];
+        for (int i = 0; i < id.length; ++i) id[i] = in.readInt();
+        if (id.length == 2) return new HeapPageId(id[0], id[1]);
+        if (id.length == 3) return new BTreePageId(id[0], id[1], id[2]);
+        throw new IOException("unknown page id with " + id.length + " fields");
+    }
+
+    /** @return a page of pid's kind built from data */
+    static Page newPage(PageId pid, byte[] data) throws IOException {
+        if (pid instanceof HeapPageId) return new HeapPage((HeapPageId) pid, data);
+        BTreePageId id = (BTreePageId) pid;
+        switch (id.pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return new BTreeRootPtrPage(id, data);
+            case BTreePageId.HEADER:
+                return new BTreeHeaderPage(id, data);
+            default:
+                int key = ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+                if (id.pgcateg() == BTreePageId.INTERNAL) return new BTreeInternalPage(id, data, key);
+                return new BTreeLeafPage(id, data, key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return pid + ": " + offsets.length + " ranges, " + changedBytes() + " bytes";
+    }
+}
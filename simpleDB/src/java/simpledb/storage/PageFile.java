@@ -0,0 +1,125 @@
+package simpledb.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PageFile does the page I/O of a DbFile: it reads and writes byte ranges
+ * of one file through a FileChannel kept open for the life of the DbFile.
+ * <p>
+ * All reads and writes are positional, so they share no file cursor and
+ * threads faulting in different pages proceed in parallel. For read-mostly
+ * tables the file can be memory mapped instead: reads then copy straight
+ * out of the mapping, writes within it go to the mapping, and the mapping
+ * is remapped when the file grows past it. Files too large for a single
+ * mapping are read through the channel.
+ *
+ * @Threadsafe
+ */
+public class PageFile implements Closeable {
+
+    private final File f;
+    private final FileChannel ch;
+    private volatile boolean mapped = false;
+    /** the mapping of the file's first bytes in mapped mode, or null */
+    private volatile MappedByteBuffer map = null;
+
+    public PageFile(File f) throws IOException {
+        this.f = f;
+        ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Switch between positional channel I/O and reading through a memory
+     * mapping of the file.
+     */
+    public synchronized void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        if (!mapped) map = null;
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /** @return the length of the file in bytes */
+    public long size() throws IOException {
+        return ch.size();
+    }
+
+    /**
+     * Fill dst with the bytes of the file starting at offset.
+     *
+     * @throws EOFException if the file ends before dst is filled
+     */
+    public void read(long offset, byte[] dst) throws IOException {
+        ByteBuffer m = mapped ? mapping(offset + dst.length) : null;
+        if (m != null) {
+            // a duplicate has its own position, so concurrent readers don't interfere
+            ByteBuffer view = m.duplicate();
+            view.position((int) offset);
+            view.get(dst);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(dst);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0)
+                throw new EOFException("read past end of " + f + " at " + (offset + buf.position()));
+        }
+    }
+
+    /** Write src to the file starting at offset, growing the file if needed. */
+    public void write(long offset, byte[] src) throws IOException {
+        MappedByteBuffer m = mapped ? map : null;
+        if (m != null && offset + src.length <= m.capacity()) {
+            ByteBuffer view = m.duplicate();
+            view.position((int) offset);
+            view.put(src);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(src);
+        while (buf.hasRemaining()) ch.write(buf, offset + buf.position());
+    }
+
+    /** Force the file's contents to disk. */
+    public void force() throws IOException {
+        MappedByteBuffer m = map;
+        if (m != null) m.force();
+        ch.force(false);
+    }
+
+    /**
+     * @return a mapping covering the file's first end bytes, remapping the
+     *         whole file if the current one is too short, or null if the
+     *         file is shorter than end or too large to map
+     */
+    private ByteBuffer mapping(long end) throws IOException {
+        MappedByteBuffer m = map;
+        if (m != null && end <= m.capacity()) return m;
+        synchronized (this) {
+            if (!mapped) return null;
+            m = map;
+            if (m != null && end <= m.capacity()) return m;
+            long size = ch.size();
+            if (end > size || size > Integer.MAX_VALUE) return null;
+            map = m = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return m;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        map = null;
+        ch.close();
+    }
+}
@@ -0,0 +1,199 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageWriter is the buffer pool's background writer.
+ * <p>
+ * A commit only logs and forces the changes of its transaction; its pages
+ * stay in the pool marked clean but listed in the dirty page table, i.e.
+ * with changes that are on the log but not yet in their files. Such a page
+ * cannot be evicted without writing it first, and it holds back log
+ * truncation. PageWriter writes these pages back in the background, oldest
+ * change first, so that eviction finds clean victims and commits never pay
+ * for page writes.
+ * <p>
+ * Every round writes a few pages, and keeps writing while fewer than the
+ * clean target's fraction of the pool's frames are free or hold pages that
+ * can be evicted without a write. A page is written only after the log is
+ * forced up to its last change. The writer never writes pages of running
+ * transactions; only eviction steals those (see BufferPool#setSteal).
+ * <p>
+ * The thread is started by the first commit and exits once there is
+ * nothing left to write. Eviction wakes it early when it had to write a
+ * page itself.
+ *
+ * @Threadsafe
+ */
+public class PageWriter {
+
+    /** Default fraction of the pool's frames kept clean. */
+    public static final double DEFAULT_CLEAN_TARGET = 0.25;
+    /** Default time between rounds, in milliseconds. */
+    public static final long DEFAULT_INTERVAL = 50;
+    /** Default number of pages written per round once the clean target is met. */
+    public static final int DEFAULT_TRICKLE = 4;
+
+    private final BufferPool pool;
+    private volatile double cleanTarget = DEFAULT_CLEAN_TARGET;
+    private volatile long interval = DEFAULT_INTERVAL;
+    private volatile int trickle = DEFAULT_TRICKLE;
+    private Thread writer = null; // protected by this
+    private volatile boolean stopped = false;
+
+    private final AtomicLong pagesWritten = new AtomicLong(), evictionWrites = new AtomicLong(),
+        rounds = new AtomicLong();
+    private volatile long statsSince = System.nanoTime();
+
+    PageWriter(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param cleanTarget fraction of the pool's frames, between 0 and 1, the
+     *            writer keeps free or holding pages evictable without a write
+     */
+    public void setCleanTarget(double cleanTarget) {
+        if (cleanTarget < 0 || cleanTarget > 1) throw new IllegalArgumentException("clean target must be within [0, 1]");
+        this.cleanTarget = cleanTarget;
+    }
+
+    public double getCleanTarget() {
+        return cleanTarget;
+    }
+
+    /** @param interval milliseconds between rounds */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /** @param trickle pages written per round once the clean target is met */
+    public void setTrickle(int trickle) {
+        this.trickle = trickle;
+    }
+
+    public int getTrickle() {
+        return trickle;
+    }
+
+    /** Make sure the writer is running; called after commits leave pages to it. */
+    synchronized void start() {
+        if (writer != null || stopped) return;
+        writer = new Thread(this::run, "page-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer for good, waiting for a round in progress to finish;
+     * pages left unwritten stay in the dirty page table.
+     */
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            t = writer;
+            notifyAll();
+        }
+        if (t == null || t == Thread.currentThread()) return;
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Note that eviction had to write a page itself, and wake the writer. */
+    synchronized void evictionWrite() {
+        evictionWrites.incrementAndGet();
+        start();
+        notifyAll();
+    }
+
+    private void run() {
+        try {
+            // the pool is replaced by Database.reset; its pages are gone then
+            while (!stopped && Database.getBufferPool() == pool) {
+                synchronized (this) {
+                    try {
+                        wait(interval);
+                    } catch (InterruptedException e) {
+                        // write a round anyway
+                    }
+                }
+                if (stopped) return;
+                try {
+                    writeRound();
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+                synchronized (this) {
+                    // must not take the pool's monitor here, eviction calls in holding it
+                    if (!pool.hasUnwrittenPages()) return;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (writer == Thread.currentThread()) writer = null;
+            }
+        }
+    }
+
+    /**
+     * Write committed pages back, oldest change first: at least the trickle,
+     * and more until the clean target is met.
+     *
+     * @return the number of pages written
+     */
+    public int writeRound() throws IOException {
+        rounds.incrementAndGet();
+        List<PageId> unwritten = pool.unwrittenPages();
+        int target = (int) Math.ceil(cleanTarget * pool.getNumPages());
+        int clean = pool.cleanFrames(), n = 0;
+        for (PageId pid : unwritten) {
+            if (n >= trickle && clean >= target) break;
+            if (pool.writeCommitted(pid)) {
+                ++n;
+                ++clean;
+            }
+        }
+        pagesWritten.addAndGet(n);
+        return n;
+    }
+
+    /** @return the number of pages written by the writer */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /** @return the number of pages eviction had to write because no clean victim was left */
+    public long getEvictionWrites() {
+        return evictionWrites.get();
+    }
+
+    /** @return the number of rounds run */
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    /** @return pages written per second by the writer since the stats were last reset */
+    public double getWriteRate() {
+        double secs = (System.nanoTime() - statsSince) / 1e9;
+        return secs <= 0 ? 0 : pagesWritten.get() / secs;
+    }
+
+    public void resetStats() {
+        pagesWritten.set(0);
+        evictionWrites.set(0);
+        rounds.set(0);
+        statsSince = System.nanoTime();
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAhead detects sequential reads of heap files through the buffer pool
+ * and reads the pages that follow into the pool before they are asked for.
+ * <p>
+ * The pool reports every page it serves. Once a table's pages have been
+ * asked for in order a few times in a row, the next window's worth of pages
+ * is read on a small pool of I/O threads and cached as if somebody had read
+ * them, through the scan's BufferAccessStrategy if it has one. The window
+ * is refilled whenever the scan has consumed half of it, and it never
+ * exceeds the scan's ring, so prefetched pages are not recycled before the
+ * scan gets to them.
+ * <p>
+ * A prefetched page is a hit once it is asked for, including while its
+ * read is still in flight, and wasted if it leaves the pool unused or
+ * cannot be cached because no frame can be freed without a write.
+ * <p>
+ * B+ tree files read their next leaf ahead themselves (see
+ * BTreeFile#setReadAhead).
+ *
+ * @Threadsafe
+ */
+public class ReadAhead {
+
+    /** Default number of pages read ahead of a sequential scan. */
+    public static final int DEFAULT_WINDOW = 8;
+    /** Number of in-order page reads after which a table's reads count as sequential. */
+    public static final int SEQUENTIAL_RUN = 3;
+
+    private static final ExecutorService io = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "heap-read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** where a table's reads are, and how far ahead of them pages were requested */
+    private static class Stream {
+        int last = -1, run = 0, issuedTo = -1;
+    }
+
+    private final BufferPool pool;
+    private volatile int window = DEFAULT_WINDOW;
+    private volatile boolean enabled = true;
+    private final Map<Integer, Stream> streams = new HashMap<>(); // protected by this
+    private final AtomicLong issued = new AtomicLong(), hits = new AtomicLong(), wasted = new AtomicLong();
+
+    ReadAhead(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** @param window pages read ahead of a sequential scan; 0 turns read-ahead off */
+    public void setWindow(int window) {
+        if (window < 0) throw new IllegalArgumentException("window must not be negative");
+        this.window = window;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) streams.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Note that the pool served pid, and read the pages after it ahead if
+     * the reads of its table have become sequential.
+     *
+     * @param strategy the strategy pid was asked for with, or null
+     */
+    synchronized void access(PageId pid, BufferAccessStrategy strategy) {
+        int w = window;
+        if (!enabled || w == 0 || !(pid instanceof HeapPageId)) return;
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (!(f instanceof HeapFile)) return;
+        Stream s = streams.computeIfAbsent(pid.getTableId(), k -> new Stream());
+        int pgno = pid.getPageNumber();
+        if (pgno == s.last) return;
+        if (pgno == s.last + 1) ++s.run;
+        else {
+            s.run = 1;
+            s.issuedTo = pgno;
+        }
+        s.last = pgno;
+        if (s.run < SEQUENTIAL_RUN) return;
+        if (strategy != null) w = Math.min(w, strategy.getRingSize() - 1);
+        w = Math.min(w, pool.getNumPages() / 4);
+        // refill once half the window is used up
+        if (w <= 0 || s.issuedTo - pgno > w / 2) return;
+        int end = Math.min(pgno + w, ((HeapFile) f).numPages() - 1);
+        for (int n = Math.max(s.issuedTo, pgno) + 1; n <= end; ++n) {
+            if (pool.prefetch(new HeapPageId(pid.getTableId(), n), strategy, io)) issued.incrementAndGet();
+        }
+        s.issuedTo = Math.max(s.issuedTo, end);
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void wasted() {
+        wasted.incrementAndGet();
+    }
+
+    /** @return the number of pages read ahead */
+    public long getIssued() {
+        return issued.get();
+    }
+
+    /** @return the number of pages read ahead that were asked for afterwards */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of pages read ahead that left the pool, or never got in, unused */
+    public long getWasted() {
+        return wasted.get();
+    }
+
+    public void resetStats() {
+        issued.set(0);
+        hits.set(0);
+        wasted.set(0);
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame. The BufferPool reports every page that
+ * enters the pool, every hit on a resident page and every page that
+ * leaves the pool for any reason other than eviction; the policy keeps
+ * whatever bookkeeping it needs to pick a victim cheaply.
+ * <p>
+ * Implementations must be thread safe, since BufferPool calls into them
+ * from every thread fetching pages.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page is brought into the buffer pool.
+     *
+     * @param pid the id of the page that became resident
+     */
+    void admit(PageId pid);
+
+    /**
+     * Called on every buffer pool hit of a resident page.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    void access(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool without being chosen as a
+     * victim (e.g. it was discarded by recovery or a B+ tree). Removing a
+     * page that is not tracked is a no-op.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void remove(PageId pid);
+
+    /**
+     * Choose a victim page and stop tracking it. Pages rejected by
+     * evictable (e.g. dirty pages under NO STEAL) are never returned.
+     *
+     * @param evictable test telling whether a page may currently be evicted
+     * @return the id of the victim, or null if no tracked page is evictable
+     */
+    PageId evict(Predicate<PageId> evictable);
+}
@@ -0,0 +1,298 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VersionStore is the undo store behind multi-version HeapFiles.
+ * <p>
+ * A HeapPage always holds the newest state of every slot, including
+ * changes of transactions that have not committed yet. Whenever a
+ * transaction changes a slot for the first time, the state it overwrote
+ * (the old tuple, or null for an empty slot) is pushed onto a version chain
+ * kept here for that slot, newest first. A reader walks the chain from the
+ * page state backwards, undoing every change that is not visible to its
+ * snapshot, and so sees the table as of the moment it started reading,
+ * without taking any page locks.
+ * <p>
+ * Snapshots are commit timestamps: a transaction's snapshot is the value
+ * of the commit clock when it first reads or writes a multi-version table,
+ * and a change is visible to it if it made the change itself or the
+ * change's writer committed at or before the snapshot. Writers still take
+ * exclusive page locks; under snapshot isolation a writer that would
+ * overwrite a change committed after its snapshot is aborted (first
+ * committer wins).
+ * <p>
+ * A background vacuum thread trims versions no active snapshot can see
+ * any more. It runs while there are versions to reclaim and exits once the
+ * store is empty.
+ * <p>
+ * Chains of a page are protected by the monitor of that page's slot map.
+ * Writers change a page and record its versions while holding the page's
+ * monitor, and readers read the page and its chains under the same
+ * monitor, so a reader never sees a page change without its version.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** One overwritten state of a slot. */
+    private static class Version {
+        final TransactionId writer;
+        final PageId pid;
+        final int slot;
+        /** the slot's state before writer changed it; null if it was empty */
+        final Tuple before;
+        /** commit timestamp of writer, 0 while it is running */
+        volatile long commitTs = 0;
+        /** the change this one overwrote, protected by the page's slot map */
+        Version older;
+
+        Version(TransactionId writer, PageId pid, int slot, Tuple before, Version older) {
+            this.writer = writer;
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+            this.older = older;
+        }
+    }
+
+    /** Default time between vacuum passes, in milliseconds. */
+    public static final long DEFAULT_VACUUM_INTERVAL = 100;
+
+    /** the chain heads of each page, keyed by slot */
+    private final ConcurrentHashMap<PageId, HashMap<Integer, Version>> chains = new ConcurrentHashMap<>();
+    /** versions created by each running transaction */
+    private final ConcurrentHashMap<TransactionId, List<Version>> writtenBy = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /** the newest commit timestamp whose versions are all stamped */
+    private final AtomicLong clock = new AtomicLong();
+    private final Object commitLock = new Object();
+    private final long vacuumInterval;
+    private Thread vacuum = null; // protected by this
+
+    private final AtomicLong versions = new AtomicLong(), reclaimed = new AtomicLong(), vacuumRuns = new AtomicLong();
+
+    public VersionStore() {
+        this(DEFAULT_VACUUM_INTERVAL);
+    }
+
+    /**
+     * @param vacuumInterval milliseconds between vacuum passes
+     */
+    public VersionStore(long vacuumInterval) {
+        this.vacuumInterval = vacuumInterval;
+    }
+
+    /** @return tid's snapshot timestamp, taking it now if tid has none yet */
+    public long snapshotOf(TransactionId tid) {
+        return snapshots.computeIfAbsent(tid, k -> clock.get());
+    }
+
+    private boolean visible(Version v, TransactionId tid, long snapshot) {
+        if (v.writer.equals(tid)) return true;
+        long ts = v.commitTs;
+        return ts != 0 && ts <= snapshot;
+    }
+
+    /**
+     * Check that tid may overwrite a slot of pg without recording anything,
+     * so that a batch of changes can be checked as a whole first.
+     *
+     * @throws TransactionAbortedException if recordChange would abort for
+     *         an overwrite of the slot
+     */
+    public void checkOverwrite(TransactionId tid, HeapPage pg, int slot) throws TransactionAbortedException {
+        HashMap<Integer, Version> slots = chains.get(pg.getId());
+        if (slots == null) return;
+        long snapshot = snapshotOf(tid);
+        synchronized (slots) {
+            Version head = slots.get(slot);
+            if (head != null && !visible(head, tid, snapshot)) throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Record that tid is about to change a slot of pg, saving the slot's
+     * current state. Must be called before the change, and the page
+     * changed, while holding pg's monitor and an exclusive lock on pg.
+     *
+     * @param overwrite true if the change replaces or deletes the tuple in
+     *            the slot, false if it fills an empty slot
+     * @throws TransactionAbortedException if the change overwrites a change
+     *         of a transaction that committed after tid's snapshot
+     */
+    public void recordChange(TransactionId tid, HeapPage pg, int slot, boolean overwrite)
+        throws TransactionAbortedException {
+        long snapshot = snapshotOf(tid);
+        Tuple before = pg.getTuple(slot);
+        PageId pid = pg.getId();
+        Version v;
+        while (true) {
+            HashMap<Integer, Version> slots = chains.computeIfAbsent(pid, k -> new HashMap<>());
+            synchronized (slots) {
+                // the vacuum dropped this map before we got hold of it
+                if (chains.get(pid) != slots) continue;
+                Version head = slots.get(slot);
+                if (head != null) {
+                    if (head.writer.equals(tid)) return; // already have tid's before image
+                    // reusing a slot somebody emptied is not a conflict
+                    if (overwrite && !visible(head, tid, snapshot)) throw new TransactionAbortedException();
+                }
+                v = new Version(tid, pid, slot, before, head);
+                slots.put(slot, v);
+                break;
+            }
+        }
+        writtenBy.computeIfAbsent(tid, k -> Collections.synchronizedList(new ArrayList<>())).add(v);
+        versions.incrementAndGet();
+        ensureVacuum();
+    }
+
+    /**
+     * @return the tuples of pg visible to tid's snapshot. Reads the page
+     *         under its monitor; no page lock is needed.
+     */
+    public List<Tuple> visibleTuples(TransactionId tid, HeapPage pg) {
+        long snapshot = snapshotOf(tid);
+        ArrayList<Tuple> res = new ArrayList<>();
+        synchronized (pg) {
+            HashMap<Integer, Version> slots = chains.get(pg.getId());
+            if (slots == null) {
+                pg.iterator().forEachRemaining(res::add);
+                return res;
+            }
+            synchronized (slots) {
+                for (int i = 0, n = pg.getNumSlots(); i < n; ++i) {
+                    Tuple state = pg.getTuple(i);
+                    for (Version v = slots.get(i); v != null && !visible(v, tid, snapshot); v = v.older)
+                        state = v.before;
+                    if (state != null) res.add(state);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Stamp every version tid created with a new commit timestamp. Must be
+     * called after tid's pages are installed in the buffer pool and before
+     * its locks are released.
+     */
+    public void commit(TransactionId tid) {
+        List<Version> mine = writtenBy.remove(tid);
+        if (mine == null) return;
+        synchronized (commitLock) {
+            long ts = clock.get() + 1;
+            synchronized (mine) {
+                for (Version v : mine) v.commitTs = ts;
+            }
+            // publish only once all versions carry ts, so no snapshot sees half a commit
+            clock.set(ts);
+        }
+    }
+
+    /**
+     * Drop every version tid created. Must be called after tid's dirty
+     * pages were rolled back in the buffer pool, so that the page states
+     * readers find again match the chains.
+     */
+    public void abort(TransactionId tid) {
+        List<Version> mine = writtenBy.remove(tid);
+        if (mine == null) return;
+        synchronized (mine) {
+            for (Version v : mine) {
+                HashMap<Integer, Version> slots = chains.get(v.pid);
+                if (slots == null) continue;
+                synchronized (slots) {
+                    // tid held an exclusive lock on the page, so its version is the head
+                    if (slots.get(v.slot) != v) continue;
+                    if (v.older == null) slots.remove(v.slot);
+                    else slots.put(v.slot, v.older);
+                }
+                reclaimed.incrementAndGet();
+            }
+        }
+    }
+
+    /** Forget tid's snapshot once it has committed or aborted. */
+    public void endTransaction(TransactionId tid) {
+        snapshots.remove(tid);
+    }
+
+    private synchronized void ensureVacuum() {
+        if (vacuum != null) return;
+        vacuum = new Thread(this::runVacuum, "version-vacuum");
+        vacuum.setDaemon(true);
+        vacuum.start();
+    }
+
+    private void runVacuum() {
+        while (true) {
+            try {
+                Thread.sleep(vacuumInterval);
+            } catch (InterruptedException e) {
+                // fall through and vacuum
+            }
+            vacuum();
+            synchronized (this) {
+                if (chains.isEmpty()) {
+                    vacuum = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop every version that all current and future snapshots see through,
+     * i.e. whose writer committed at or before the oldest active snapshot.
+     *
+     * @return the number of versions reclaimed
+     */
+    public int vacuum() {
+        vacuumRuns.incrementAndGet();
+        long horizon = clock.get();
+        for (long s : snapshots.values()) horizon = Math.min(horizon, s);
+        int n = 0;
+        for (Map.Entry<PageId, HashMap<Integer, Version>> e : chains.entrySet()) {
+            HashMap<Integer, Version> slots = e.getValue();
+            synchronized (slots) {
+                Iterator<Version> it = slots.values().iterator();
+                while (it.hasNext()) {
+                    Version prev = null, v = it.next();
+                    while (v != null && !(v.commitTs != 0 && v.commitTs <= horizon)) {
+                        prev = v;
+                        v = v.older;
+                    }
+                    // v and everything older are visible to every snapshot
+                    for (Version d = v; d != null; d = d.older) ++n;
+                    if (prev == null) it.remove();
+                    else prev.older = null;
+                }
+                if (slots.isEmpty()) chains.remove(e.getKey(), slots);
+            }
+        }
+        reclaimed.addAndGet(n);
+        return n;
+    }
+
+    /** @return the number of versions created */
+    public long getVersionCount() {
+        return versions.get();
+    }
+
+    /** @return the number of versions dropped by vacuum or abort */
+    public long getReclaimedCount() {
+        return reclaimed.get();
+    }
+
+    /** @return the number of vacuum passes run */
+    public long getVacuumRunCount() {
+        return vacuumRuns.get();
+    }
+}
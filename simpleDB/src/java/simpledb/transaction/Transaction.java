@@ -45,8 +45,13 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            if (abort) Database.getLogFile().logAbort(tid);
-            else Database.getLogFile().logCommit(tid);
+            if (abort) {
+                Database.getLogFile().logAbort(tid);
+            } else {
+                // tid's update records must precede its commit record
+                Database.getBufferPool().logDirtyPages(tid);
+                Database.getLogFile().logCommit(tid);
+            }
 
             // Release locks and flush pages if needed
             Database.getBufferPool().transactionComplete(tid, !abort); // release locks